@@ -0,0 +1,13 @@
+/**
+ * Interface for sensing whether the shared medium is in use, so that a host can hold off transmitting
+ * while another host is talking.
+ */
+public interface CarrierSense {
+    /**
+     * Returns whether another transmission is currently on the medium.
+     * Must not block, and may be called from any thread.
+     *
+     * @return {@code true} if the channel is busy
+     */
+    boolean isChannelBusy();
+}
@@ -18,8 +18,8 @@ public interface FrameIO {
      * Unwraps the frame data from Start-of-frame delimiters,
      * headers, checksums and End-of-frame delimiters (if necessary).
      *
-     * Blocks until the next valid frame is decoded.
-     * @return the next valid frame
+     * Blocks until the next valid frame is decoded, or the thread is interrupted.
+     * @return the next valid frame, or {@code null} if interrupted, in which case the interrupt status is set
      */
     Frame decode();
 }
@@ -0,0 +1,15 @@
+/**
+ * Interface for deciding which connection a {@code ConnectionHost} sends its next data frame from.
+ * Control frames (ACKs, SYN, FIN and pings) are not scheduled: the host always sends them first.
+ */
+public interface TransmitScheduler {
+    /**
+     * Sends at most one frame, from the connection whose turn it is, by calling its {@code send} method.
+     * Only called from the host's sender thread.
+     *
+     * @param connections the connections the host currently serves. The same array is passed until a
+     *                    connection is added or removed.
+     * @return {@code true} if a frame was sent, {@code false} if no connection had anything to send
+     */
+    boolean sendNext(Connection[] connections);
+}
@@ -1,4 +1,10 @@
 class Address {
+    // Frames sent to the broadcast host are received by every host.
+    static final byte BROADCAST_HOST = (byte) 0xFF;
+    // Hosts from FIRST_GROUP_HOST to LAST_GROUP_HOST are multicast groups, received by the hosts that joined them.
+    static final byte FIRST_GROUP_HOST = (byte) 0xF0;
+    static final byte LAST_GROUP_HOST = (byte) 0xFE;
+
     byte host;
     byte port;
 
@@ -7,6 +13,20 @@ class Address {
         this.port = (byte) port;
     }
 
+    /**
+     * @return {@code true} if the given host is a multicast group
+     */
+    static boolean isGroupHost(byte host) {
+        return (host & 0xFF) >= (FIRST_GROUP_HOST & 0xFF) && (host & 0xFF) <= (LAST_GROUP_HOST & 0xFF);
+    }
+
+    /**
+     * @return {@code true} if this address is received by more than one host: the broadcast host, or a group
+     */
+    boolean isMulticast() {
+        return host == BROADCAST_HOST || isGroupHost(host);
+    }
+
     @Override
     public boolean equals(Object other) {
         if (other == null) return false;
@@ -16,6 +36,18 @@ class Address {
         return host == otherAddress.host && port == otherAddress.port;
     }
 
+    @Override
+    public int hashCode() {
+        return pack();
+    }
+
+    /**
+     * @return the host and port packed into the low 16 bits of an int
+     */
+    int pack() {
+        return (host & 0xFF) << 8 | (port & 0xFF);
+    }
+
     @Override
     public String toString() {
         return host + "." + port;
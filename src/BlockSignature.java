@@ -0,0 +1,244 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The signature of a file, for rsync-style delta transfer: a weak rolling checksum and a strong hash of each
+ * full block of {@code blockSize} bytes.
+ * <p>
+ * The receiver of a file sends the sender the signature of the copy it already has. The sender slides a window of
+ * {@code blockSize} bytes over its own copy, one byte at a time, updating the weak checksum of the window in constant
+ * time. Only where the weak checksum matches a block is the window's strong hash computed, and if that matches too,
+ * the receiver is told to copy the block instead of being sent its bytes. So blocks are found wherever they have
+ * moved to in the file, such as after an insertion.
+ * <p>
+ * The weak checksum is the one rsync uses: with {@code x} the window's bytes, unsigned,
+ * {@code a = sum(x[i])} and {@code b = sum((blockSize - i) * x[i])}, both modulo 2^16, and the checksum is
+ * {@code a | b << 16}. The strong hash is the first {@code STRONG_LENGTH} bytes of the block's SHA-256 hash. Together
+ * with the weak checksum, that makes a false match vanishingly unlikely, and the whole file's SHA-256 hash is checked
+ * in the end anyway.
+ * <p>
+ * The block size grows with the square root of the file's length, as in rsync, so that the signature of a file of
+ * {@code n} bytes has about {@code sqrt(n)} blocks, rather than growing with {@code n}, while still matching blocks
+ * wherever fewer than about {@code sqrt(n)} bytes have changed between them.
+ * <p>
+ * The signature is written in parts of up to {@code PART_BLOCKS} blocks, as it is computed, so that it can be sent
+ * as messages of bounded size and is never held whole by the side computing it. Wire format of each part
+ * (big-endian), the last one being the first with fewer than {@code PART_BLOCKS} blocks, possibly none:
+ * <pre>
+ * | blocks (4) | weak (4) | strong (8) | weak (4) | strong (8) | ...
+ * </pre>
+ */
+class BlockSignature {
+    static final int STRONG_LENGTH = 8;
+    static final int MIN_BLOCK_SIZE = 1024;  // bytes
+    static final int MAX_BLOCK_SIZE = 128 * 1024;  // bytes
+    static final int PART_BLOCKS = 256;
+
+    final int blockSize;
+    private final List<byte[]> strong = new ArrayList<>();
+    // Blocks by weak checksum. The first of several identical blocks is enough.
+    private final Map<Integer, int[]> blocksByWeak = new HashMap<>();
+
+    /**
+     * Creates an empty signature, to {@code add} the parts of a signature to.
+     */
+    BlockSignature(int blockSize) {
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * @param length the length of a file
+     * @return the block size for its signature: its square root, rounded down to a multiple of 8, and kept from
+     * {@code MIN_BLOCK_SIZE} to {@code MAX_BLOCK_SIZE}
+     */
+    static int blockSize(long length) {
+        int size = (int) Math.min(MAX_BLOCK_SIZE, (long) Math.sqrt((double) length)) & ~7;
+        return Math.max(MIN_BLOCK_SIZE, size);
+    }
+
+    /**
+     * Computes the signature of the given file, reading it one block at a time, and writes it in parts as it goes.
+     * If the file can't be read to the end, the signature still ends with a last part, covering the blocks read so
+     * far, before the exception is thrown.
+     *
+     * @param file      the file, or {@code null} for the signature of an empty file
+     * @param blockSize the block size
+     * @param out       receives the parts
+     */
+    static void write(Path file, int blockSize, Sink out) throws IOException {
+        ByteBuffer part = ByteBuffer.allocate(partLength(PART_BLOCKS));
+        part.putInt(0);
+        int partBlocks = 0;
+        try {
+            if (file == null || !Files.isRegularFile(file)) {
+                return;
+            }
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                long blocks = channel.size() / blockSize;
+                MessageDigest digest = sha256();
+                ByteBuffer buffer = ByteBuffer.allocate(blockSize);
+                for (long block = 0; block < blocks; block++) {
+                    buffer.clear();
+                    while (buffer.hasRemaining()) {
+                        if (channel.read(buffer, block * blockSize + buffer.position()) < 0) {
+                            // The file shrank. Only the blocks read so far are in the signature.
+                            return;
+                        }
+                    }
+                    if (partBlocks == PART_BLOCKS) {
+                        out.put(finishPart(part, partBlocks));
+                        part = ByteBuffer.allocate(partLength(PART_BLOCKS));
+                        part.putInt(0);
+                        partBlocks = 0;
+                    }
+                    part.putInt(weak(buffer.array(), 0, blockSize));
+                    part.put(strong(digest, buffer.array(), 0, blockSize));
+                    partBlocks++;
+                }
+            }
+        } finally {
+            if (partBlocks == PART_BLOCKS) {
+                out.put(finishPart(part, partBlocks));
+                part = ByteBuffer.allocate(partLength(0));
+                part.putInt(0);
+                partBlocks = 0;
+            }
+            out.put(finishPart(part, partBlocks));
+        }
+    }
+
+    private static int partLength(int blocks) {
+        return Integer.BYTES + blocks * (Integer.BYTES + STRONG_LENGTH);
+    }
+
+    private static byte[] finishPart(ByteBuffer part, int blocks) {
+        part.putInt(0, blocks);
+        return Arrays.copyOf(part.array(), partLength(blocks));
+    }
+
+    /**
+     * Adds the blocks of the next part of a signature written by {@code write}.
+     *
+     * @param part the part
+     * @return {@code true} if more parts follow
+     */
+    boolean add(byte[] part) {
+        ByteBuffer buffer = ByteBuffer.wrap(part);
+        int blocks = buffer.getInt();
+        for (int i = 0; i < blocks; i++) {
+            int weak = buffer.getInt();
+            byte[] hash = new byte[STRONG_LENGTH];
+            buffer.get(hash);
+            add(weak, hash);
+        }
+        return blocks == PART_BLOCKS;
+    }
+
+    private void add(int weak, byte[] hash) {
+        int block = strong.size();
+        strong.add(hash);
+        int[] blocks = blocksByWeak.get(weak);
+        if (blocks == null) {
+            blocksByWeak.put(weak, new int[]{block});
+        } else if (!containsStrong(blocks, hash)) {
+            int[] grown = Arrays.copyOf(blocks, blocks.length + 1);
+            grown[blocks.length] = block;
+            blocksByWeak.put(weak, grown);
+        }
+    }
+
+    int blocks() {
+        return strong.size();
+    }
+
+    /**
+     * Finds a block with the given contents.
+     *
+     * @param weak   the weak checksum of the window
+     * @param window the buffer holding the window
+     * @param offset the offset of the window in the buffer
+     * @param digest a SHA-256 digest to hash the window with, if a block has the same weak checksum
+     * @return the block's index, or -1 if there is none
+     */
+    int find(int weak, byte[] window, int offset, MessageDigest digest) {
+        int[] blocks = blocksByWeak.get(weak);
+        if (blocks == null) {
+            return -1;
+        }
+        byte[] hash = strong(digest, window, offset, blockSize);
+        for (int block : blocks) {
+            if (Arrays.equals(strong.get(block), hash)) {
+                return block;
+            }
+        }
+        return -1;
+    }
+
+    private boolean containsStrong(int[] blocks, byte[] hash) {
+        for (int block : blocks) {
+            if (Arrays.equals(strong.get(block), hash)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the weak checksum of {@code length} bytes of {@code data} from {@code offset}
+     */
+    static int weak(byte[] data, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            int x = data[offset + i] & 0xFF;
+            a += x;
+            b += (length - i) * x;
+        }
+        return (a & 0xFFFF) | (b << 16);
+    }
+
+    /**
+     * @return the weak checksum of the window one byte further on: without {@code out}, its first byte, and with
+     * {@code in}, the byte after it
+     */
+    static int roll(int weak, byte out, byte in, int length) {
+        int a = (weak & 0xFFFF) - (out & 0xFF) + (in & 0xFF);
+        int b = (weak >>> 16) - length * (out & 0xFF) + a;
+        return (a & 0xFFFF) | (b << 16);
+    }
+
+    /**
+     * @return the strong hash of {@code length} bytes of {@code data} from {@code offset}
+     */
+    private static byte[] strong(MessageDigest digest, byte[] data, int offset, int length) {
+        digest.update(data, offset, length);
+        return Arrays.copyOf(digest.digest(), STRONG_LENGTH);
+    }
+
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Receives the parts of a signature as they are written.
+     */
+    interface Sink {
+        void put(byte[] part);
+    }
+}
@@ -0,0 +1,150 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@code FrameIO} decorator that records every frame encoded and decoded by the wrapped {@code FrameIO}
+ * to an append-only capture file. Captures can be played back with {@code ReplayFrameIO}.
+ * <p>
+ * Capture file format (big-endian):
+ * <pre>
+ * file header | magic "AFCP" (4) | version (2)
+ * record      | timestamp (8) | direction (1) | length (2) | frame header + payload (length)
+ * </pre>
+ * Timestamps are nanoseconds since the epoch. Frame headers are in the same format as on the wire.
+ * <p>
+ * Records are buffered in memory and written through a {@code FileChannel} when the buffer fills, at least every
+ * {@code FLUSH_INTERVAL} by a background thread, on {@code flush} and {@code close}, and when the JVM shuts down,
+ * so that a capture is complete up to shortly before a crash.
+ */
+public class CaptureFrameIO implements FrameIO {
+    static final int MAGIC = 0x41464350;  // "AFCP"
+    // 1: the original header. 2: 16-bit sequence numbers, ack_seq and sack. 3: msg_length on BEG frames.
+    // 4: window. 5: the str flag.
+    static final short VERSION = 5;
+    static final int FILE_HEADER_LENGTH = 4 + 2;
+    static final int RECORD_HEADER_LENGTH = 8 + 1 + 2;
+    static final byte DIRECTION_ENCODED = 0;
+    static final byte DIRECTION_DECODED = 1;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    static final long FLUSH_INTERVAL = 1000;  // milliseconds
+
+    private final FrameIO frameIO;
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final Thread flusher;
+    private final Thread shutdownHook = new Thread(this::flush);
+    private volatile boolean isClosed = false;
+
+    // Timestamps are taken with nanoTime and anchored to the wall clock once.
+    private final long epochOffset =
+            TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis()) - System.nanoTime();
+
+    /**
+     * Opens the capture file for appending, creating it if it does not exist.
+     *
+     * @param frameIO the frame IO to capture
+     * @param capture the capture file
+     * @throws IOException if the capture file cannot be opened
+     */
+    public CaptureFrameIO(FrameIO frameIO, Path capture) throws IOException {
+        this.frameIO = frameIO;
+        this.channel = FileChannel.open(capture,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        if (channel.size() == 0) {
+            buffer.putInt(MAGIC);
+            buffer.putShort(VERSION);
+        }
+
+        flusher = IOExecutors.threadFactory("capture", false).newThread(this::runFlusher);
+        flusher.setDaemon(true);
+        flusher.start();
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    @Override
+    public void encode(Frame frame) {
+        record(DIRECTION_ENCODED, frame);
+        frameIO.encode(frame);
+    }
+
+    @Override
+    public Frame decode() {
+        Frame frame = frameIO.decode();
+        if (frame != null) {
+            record(DIRECTION_DECODED, frame);
+        }
+        return frame;
+    }
+
+    /**
+     * Writes all buffered records to the capture file.
+     */
+    public synchronized void flush() {
+        if (isClosed) {
+            return;
+        }
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Flushes buffered records and closes the capture file.
+     */
+    public synchronized void close() {
+        flush();
+        isClosed = true;
+        flusher.interrupt();
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException e) {
+            // The JVM is shutting down.
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void runFlusher() {
+        try {
+            while (!isClosed) {
+                Thread.sleep(FLUSH_INTERVAL);
+                synchronized (this) {
+                    if (buffer.position() > 0) {
+                        flush();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            // closed
+        }
+    }
+
+    private synchronized void record(byte direction, Frame frame) {
+        if (isClosed) {
+            return;
+        }
+        int length = frame.headerLength() + frame.payloadLength();
+        if (buffer.remaining() < RECORD_HEADER_LENGTH + length) {
+            flush();
+        }
+        buffer.putLong(epochOffset + System.nanoTime());
+        buffer.put(direction);
+        buffer.putShort((short) length);
+        frame.putHeader(buffer);
+        buffer.put(frame.payload.duplicate());
+    }
+}
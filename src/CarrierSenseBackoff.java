@@ -0,0 +1,168 @@
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collision avoidance for a shared medium (CSMA/CA), in the style of IEEE 802.11's distributed coordination function.
+ * <p>
+ * Before transmitting, a host waits for the channel to be idle, and then for it to stay idle for {@code difs} plus
+ * a random backoff of between 0 and {@code 2^exponent - 1} slots. The exponent starts at {@code minExponent}, and
+ * each time the channel turns busy during the wait it is doubled, up to {@code maxExponent}, and a new backoff is
+ * drawn. Randomizing the backoff keeps hosts that were deferring to the same transmission from all starting
+ * the moment it ends.
+ * <p>
+ * After {@code maxAttempts} busy periods, or {@code maxDefer} in total, the host transmits anyway,
+ * leaving it to retransmission to recover if the frame collides.
+ */
+public class CarrierSenseBackoff {
+    static final long DEFAULT_SLOT_TIME = 5;  // milliseconds
+    static final long DEFAULT_DIFS = 10;  // milliseconds
+    static final int DEFAULT_MIN_EXPONENT = 3;
+    static final int DEFAULT_MAX_EXPONENT = 8;
+    static final int DEFAULT_MAX_ATTEMPTS = 16;
+    static final long DEFAULT_MAX_DEFER = 5000;  // milliseconds
+
+    private final long slotTime;  // nanoseconds
+    private final long difs;  // nanoseconds
+    private final int minExponent;
+    private final int maxExponent;
+    private final int maxAttempts;
+    private final long maxDefer;  // nanoseconds
+    private final Random random;
+
+    private volatile long deferrals = 0;
+    private volatile long forcedTransmissions = 0;
+
+    public CarrierSenseBackoff() {
+        this(DEFAULT_SLOT_TIME, DEFAULT_DIFS, DEFAULT_MIN_EXPONENT, DEFAULT_MAX_EXPONENT,
+                DEFAULT_MAX_ATTEMPTS, DEFAULT_MAX_DEFER, new Random());
+    }
+
+    /**
+     * @param slotTime    the duration of one backoff slot, in milliseconds. Should be long enough to sense a
+     *                    transmission that started at the beginning of the slot.
+     * @param difs        how long the channel must be idle before the backoff starts, in milliseconds
+     * @param minExponent the initial backoff exponent
+     * @param maxExponent the largest backoff exponent
+     * @param maxAttempts the number of times the channel may turn busy before transmitting anyway
+     * @param maxDefer    the longest a transmission is deferred, in milliseconds
+     * @param random      source of the random backoffs
+     */
+    public CarrierSenseBackoff(long slotTime, long difs, int minExponent, int maxExponent,
+                               int maxAttempts, long maxDefer, Random random) {
+        if (minExponent < 0 || maxExponent < minExponent || maxExponent > 30) {
+            throw new IllegalArgumentException("Backoff exponents must satisfy 0 <= min <= max <= 30");
+        }
+        this.slotTime = TimeUnit.MILLISECONDS.toNanos(slotTime);
+        this.difs = TimeUnit.MILLISECONDS.toNanos(difs);
+        this.minExponent = minExponent;
+        this.maxExponent = maxExponent;
+        this.maxAttempts = maxAttempts;
+        this.maxDefer = TimeUnit.MILLISECONDS.toNanos(maxDefer);
+        this.random = random;
+    }
+
+    /**
+     * Blocks until the channel has been idle for DIFS plus a random backoff, or the deferral limits are reached.
+     *
+     * @param carrierSense the channel to sense
+     * @return {@code true} if the channel was found idle, {@code false} if the deferral limits were reached
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitIdleChannel(CarrierSense carrierSense) throws InterruptedException {
+        return awaitIdleChannel(carrierSense, null);
+    }
+
+    /**
+     * Like {@code awaitIdleChannel(CarrierSense)}, running {@code eachSlot} after every slot of the wait, so the
+     * waiting thread can meanwhile send frames that don't contend for the channel, such as ACKs.
+     *
+     * @param carrierSense the channel to sense
+     * @param eachSlot     run after every slot, or {@code null}
+     * @return {@code true} if the channel was found idle, {@code false} if the deferral limits were reached
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitIdleChannel(CarrierSense carrierSense, Runnable eachSlot) throws InterruptedException {
+        return awaitIdleChannel(carrierSense, eachSlot, Clock.SYSTEM);
+    }
+
+    /**
+     * Like {@code awaitIdleChannel(CarrierSense, Runnable)}, keeping time on the given clock.
+     */
+    boolean awaitIdleChannel(CarrierSense carrierSense, Runnable eachSlot, Clock clock) throws InterruptedException {
+        long deadline = clock.nanoTime() + maxDefer;
+        int exponent = minExponent;
+        for (int attempt = 1; ; attempt++) {
+            long backoff = difs + slotTime * nextBackoffSlots(exponent);
+            if (awaitIdle(carrierSense, deadline, eachSlot, clock)
+                    && isIdleFor(carrierSense, backoff, eachSlot, clock)) {
+                return true;
+            }
+            deferrals++;
+            if (attempt >= maxAttempts || clock.nanoTime() - deadline >= 0) {
+                forcedTransmissions++;
+                return false;
+            }
+            exponent = Math.min(exponent + 1, maxExponent);
+        }
+    }
+
+    /**
+     * @return the number of times a transmission had to back off again because the channel turned busy
+     */
+    public long getDeferrals() {
+        return deferrals;
+    }
+
+    /**
+     * @return the number of transmissions that went ahead without finding the channel idle
+     */
+    public long getForcedTransmissions() {
+        return forcedTransmissions;
+    }
+
+    private synchronized int nextBackoffSlots(int exponent) {
+        return random.nextInt(1 << exponent);
+    }
+
+    /**
+     * Polls the channel once per slot until it is idle.
+     *
+     * @return {@code false} if the channel was still busy at {@code deadline}
+     */
+    private boolean awaitIdle(CarrierSense carrierSense, long deadline, Runnable eachSlot, Clock clock)
+            throws InterruptedException {
+        while (carrierSense.isChannelBusy()) {
+            if (clock.nanoTime() - deadline >= 0) {
+                return false;
+            }
+            clock.sleep(slotTime);
+            if (eachSlot != null) {
+                eachSlot.run();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Senses the channel once per slot for {@code duration}.
+     *
+     * @return {@code true} if the channel stayed idle throughout
+     */
+    private boolean isIdleFor(CarrierSense carrierSense, long duration, Runnable eachSlot, Clock clock)
+            throws InterruptedException {
+        long end = clock.nanoTime() + duration;
+        while (true) {
+            long remaining = end - clock.nanoTime();
+            if (remaining <= 0) {
+                return !carrierSense.isChannelBusy();
+            }
+            clock.sleep(Math.min(remaining, slotTime));
+            if (eachSlot != null) {
+                eachSlot.run();
+            }
+            if (carrierSense.isChannelBusy()) {
+                return false;
+            }
+        }
+    }
+}
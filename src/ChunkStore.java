@@ -0,0 +1,193 @@
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An on-disk cache of chunks of data, named by their SHA-256 hash, so that the same bytes are only ever stored once,
+ * and are found by their hash wherever they came from.
+ * <p>
+ * Each chunk is a file named by its hash in hex, under a subdirectory named by the first two hex digits, so that no
+ * directory grows too large. Chunks are written to a temporary file and then moved into place, so a chunk file is
+ * always complete, and chunks are checked against their hash when read, so a corrupted chunk is dropped rather than
+ * used.
+ * <p>
+ * The store holds at most {@code capacity} bytes. When a new chunk would take it over, the least recently used
+ * chunks are deleted. Each chunk's last use is also kept as its file's modification time, so the order survives
+ * a restart.
+ * <p>
+ * Used by {@code FileTransferProtocol}: a host with a chunk store keeps the chunks of every file it receives, and
+ * when another file is offered, the chunks it already holds are not sent again. One store can be shared by several
+ * connections.
+ */
+public class ChunkStore {
+    static final int HASH_LENGTH = 32;  // bytes, of SHA-256
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final Path directory;
+    private final long capacity;
+    // Chunk sizes by hash, least recently used first. Guarded by this.
+    private final LinkedHashMap<String, Long> chunks = new LinkedHashMap<>(16, 0.75f, true);
+    private long size = 0;  // guarded by this
+
+    private final Metrics.Counter hits;
+    private final Metrics.Counter misses;
+    private final Metrics.Counter evictions;
+
+    /**
+     * Opens the store in the given directory, creating it if needed, and indexes the chunks already in it.
+     * Leftover temporary files are deleted, and chunks are evicted if they take the store over capacity.
+     *
+     * @param directory the directory to keep chunks in
+     * @param capacity  the most bytes of chunks to keep
+     * @throws IOException if the directory can't be created or read
+     */
+    public ChunkStore(Path directory, long capacity) throws IOException {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Capacity must not be negative");
+        }
+        this.directory = directory;
+        this.capacity = capacity;
+        Metrics metrics = Metrics.getDefault();
+        String prefix = metrics.instanceName("chunkStore") + ".";
+        hits = metrics.counter(prefix + "hits");
+        misses = metrics.counter(prefix + "misses");
+        evictions = metrics.counter(prefix + "evictions");
+
+        Files.createDirectories(directory);
+
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> subdirectories = Files.newDirectoryStream(directory, Files::isDirectory)) {
+            for (Path subdirectory : subdirectories) {
+                try (DirectoryStream<Path> entries = Files.newDirectoryStream(subdirectory)) {
+                    for (Path file : entries) {
+                        String name = file.getFileName().toString();
+                        if (name.endsWith(TEMP_SUFFIX)) {
+                            Files.deleteIfExists(file);
+                        } else if (name.length() == 2 * HASH_LENGTH) {
+                            files.add(file);
+                        }
+                    }
+                }
+            }
+        }
+        // Oldest first, so that they end up least recently used.
+        FileTime[] times = new FileTime[files.size()];
+        Integer[] order = new Integer[files.size()];
+        for (int i = 0; i < files.size(); i++) {
+            times[i] = Files.getLastModifiedTime(files.get(i));
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> times[a].compareTo(times[b]));
+        synchronized (this) {
+            for (int i : order) {
+                Path file = files.get(i);
+                long length = Files.size(file);
+                chunks.put(file.getFileName().toString(), length);
+                size += length;
+            }
+            evict(0);
+        }
+    }
+
+    /**
+     * @param hash the SHA-256 hash of a chunk
+     * @return the chunk, or {@code null} if the store doesn't hold it, or it was corrupted
+     */
+    public synchronized byte[] get(byte[] hash) throws IOException {
+        String name = FileTransferProtocol.toHex(hash);
+        if (chunks.get(name) == null) {
+            misses.increment();
+            return null;
+        }
+        Path file = path(name);
+        byte[] data;
+        try {
+            data = Files.readAllBytes(file);
+        } catch (IOException e) {
+            remove(name);
+            misses.increment();
+            throw e;
+        }
+        if (!Arrays.equals(BlockSignature.sha256().digest(data), hash)) {
+            remove(name);
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        return data;
+    }
+
+    /**
+     * Adds a chunk to the store, if it isn't already held, first evicting the least recently used chunks to make
+     * room for it. A chunk larger than the capacity isn't kept.
+     *
+     * @return the SHA-256 hash of the chunk
+     */
+    public synchronized byte[] put(byte[] data, int offset, int length) throws IOException {
+        MessageDigest digest = BlockSignature.sha256();
+        digest.update(data, offset, length);
+        byte[] hash = digest.digest();
+        String name = FileTransferProtocol.toHex(hash);
+        if (chunks.get(name) != null || length > capacity) {
+            return hash;
+        }
+        evict(length);
+        Path file = path(name);
+        Files.createDirectories(file.getParent());
+        Path temp = file.resolveSibling(name + TEMP_SUFFIX);
+        Files.write(temp, Arrays.copyOfRange(data, offset, offset + length));
+        try {
+            Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+        chunks.put(name, (long) length);
+        size += length;
+        return hash;
+    }
+
+    /**
+     * @return the bytes of chunks held
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+    /**
+     * Deletes least recently used chunks until {@code length} more bytes fit.
+     */
+    private void evict(long length) throws IOException {
+        Iterator<Map.Entry<String, Long>> eldest = chunks.entrySet().iterator();
+        while (size + length > capacity && eldest.hasNext()) {
+            Map.Entry<String, Long> chunk = eldest.next();
+            Files.deleteIfExists(path(chunk.getKey()));
+            size -= chunk.getValue();
+            eldest.remove();
+            evictions.increment();
+        }
+    }
+
+    private void remove(String name) throws IOException {
+        Long length = chunks.remove(name);
+        if (length != null) {
+            size -= length;
+        }
+        Files.deleteIfExists(path(name));
+    }
+
+    private Path path(String name) {
+        return directory.resolve(name.substring(0, 2)).resolve(name);
+    }
+}
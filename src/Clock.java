@@ -0,0 +1,245 @@
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The time a {@code ConnectionHost} runs on, with its connections, timer wheel and links, and a {@code FrameIOSim}:
+ * the system clock, or a virtual clock for simulations.
+ * <p>
+ * A virtual clock starts at 0 and stands still while any thread registered with it is running. Once every
+ * registered thread is waiting on the clock, in {@code sleep}, {@code park} or {@code awaitUntil}, the clock jumps
+ * to the earliest time that any of them waits for. Simulated protocols then run as fast as the machine allows,
+ * and the times they see depend only on the order of events, not on how long each one took to process. The loops of
+ * a {@code ConnectionHost} created on a clock register themselves. Other threads, such as an application sending
+ * messages, can wait on the clock too, but time does not stand still for them while they run.
+ * <p>
+ * A registered thread must only block by waiting on the clock, or briefly, for a lock: while it is blocked
+ * anywhere else, time stands still.
+ * <p>
+ * {@code awaitUntil} waits on the clock's {@code lock}, which a simulator also guards its own state with, so that
+ * the clock can't move on between a thread checking that state and waiting.
+ */
+public class Clock {
+    // The system clock, used unless a host is given another.
+    static final Clock SYSTEM = new Clock(false);
+    static final long FOREVER = Long.MAX_VALUE;
+
+    final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final boolean isVirtual;
+
+    // Virtual clock state. Guarded by lock.
+    private volatile long now = 0;
+    private final Set<Thread> registered = new HashSet<>();
+    // Threads waiting on the clock. A thread is woken by removing it.
+    private final Map<Thread, Waiter> waiting = new HashMap<>();
+    // Threads unparked while they weren't parked, whose next park returns at once.
+    private final Set<Thread> permits = new HashSet<>();
+
+    /**
+     * @param isVirtual {@code true} for a virtual clock, starting at 0, or {@code false} for the system clock
+     */
+    public Clock(boolean isVirtual) {
+        this.isVirtual = isVirtual;
+    }
+
+    public boolean isVirtual() {
+        return isVirtual;
+    }
+
+    /**
+     * @return the current time, in nanoseconds: {@code System.nanoTime}, or the virtual time
+     */
+    public long nanoTime() {
+        return isVirtual ? now : System.nanoTime();
+    }
+
+    /**
+     * Makes time stand still while the current thread runs, until it calls {@code unregister}.
+     */
+    void register() {
+        if (!isVirtual) {
+            return;
+        }
+        lock.lock();
+        try {
+            registered.add(Thread.currentThread());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void unregister() {
+        if (!isVirtual) {
+            return;
+        }
+        lock.lock();
+        try {
+            registered.remove(Thread.currentThread());
+            advance();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sleeps for the given time.
+     *
+     * @param nanos the time to sleep, in nanoseconds
+     */
+    void sleep(long nanos) throws InterruptedException {
+        if (!isVirtual) {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+            return;
+        }
+        lock.lock();
+        try {
+            long deadline = now + Math.max(0, nanos);
+            while (now - deadline < 0) {
+                await(new Waiter(deadline, false, false));
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Parks the current thread until {@code unpark} is called for it, like {@code LockSupport.park}, and as there,
+     * possibly for no reason at all.
+     */
+    void park() {
+        if (!isVirtual) {
+            LockSupport.park(this);
+            return;
+        }
+        lock.lock();
+        try {
+            if (!permits.remove(Thread.currentThread())) {
+                await(new Waiter(FOREVER, true, false));
+            }
+        } catch (InterruptedException e) {
+            // Like LockSupport.park, returns with the interrupt status set.
+            Thread.currentThread().interrupt();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Unblocks the given thread if it is parked, or else makes its next {@code park} return at once.
+     *
+     * @param thread the thread, or {@code null} to do nothing
+     */
+    void unpark(Thread thread) {
+        if (!isVirtual) {
+            LockSupport.unpark(thread);
+            return;
+        }
+        if (thread == null) {
+            return;
+        }
+        lock.lock();
+        try {
+            Waiter waiter = waiting.get(thread);
+            if (waiter != null && waiter.isPark) {
+                waiting.remove(thread);
+                changed.signalAll();
+            } else {
+                permits.add(thread);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until {@code signalAll} is called, or the given time, or possibly for no reason at all.
+     * Must be called while holding {@code lock}.
+     *
+     * @param deadline the time to wait until, in nanoseconds, or {@code FOREVER}
+     */
+    void awaitUntil(long deadline) throws InterruptedException {
+        if (!isVirtual) {
+            if (deadline == FOREVER) {
+                changed.await();
+            } else {
+                changed.awaitNanos(deadline - System.nanoTime());
+            }
+        } else if (now - deadline < 0) {
+            await(new Waiter(deadline, false, true));
+        }
+    }
+
+    /**
+     * Wakes every thread in {@code awaitUntil}. Must be called while holding {@code lock}.
+     */
+    void signalAll() {
+        if (isVirtual) {
+            waiting.values().removeIf(waiter -> waiter.isSignalled);
+        }
+        changed.signalAll();
+    }
+
+    /**
+     * Waits on the virtual clock until woken. Must be called while holding {@code lock}.
+     */
+    private void await(Waiter waiter) throws InterruptedException {
+        Thread thread = Thread.currentThread();
+        waiting.put(thread, waiter);
+        try {
+            advance();
+            while (waiting.get(thread) == waiter) {
+                changed.await();
+            }
+        } finally {
+            if (waiting.get(thread) == waiter) {
+                waiting.remove(thread);
+            }
+        }
+    }
+
+    /**
+     * Once every registered thread is waiting, moves time on to the earliest time waited for, and wakes the threads
+     * waiting for it.
+     */
+    private void advance() {
+        for (Thread thread : registered) {
+            if (!waiting.containsKey(thread)) {
+                return;
+            }
+        }
+        long next = FOREVER;
+        for (Waiter waiter : waiting.values()) {
+            next = Math.min(next, waiter.deadline);
+        }
+        if (next == FOREVER) {
+            // Waiting for a thread that isn't registered.
+            return;
+        }
+        now = Math.max(now, next);
+        for (Iterator<Waiter> waiters = waiting.values().iterator(); waiters.hasNext(); ) {
+            if (waiters.next().deadline - now <= 0) {
+                waiters.remove();
+            }
+        }
+        changed.signalAll();
+    }
+
+    private static class Waiter {
+        final long deadline;
+        final boolean isPark;  // woken by unpark
+        final boolean isSignalled;  // woken by signalAll
+
+        Waiter(long deadline, boolean isPark, boolean isSignalled) {
+            this.deadline = deadline;
+            this.isPark = isPark;
+            this.isSignalled = isSignalled;
+        }
+    }
+}
@@ -1,40 +1,152 @@
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
 import java.util.LinkedList;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Implements a reliable and message-oriented duplex communication channel
  * between 2 abstract addresses.
  *
+ * Frames are sent with Selective Repeat ARQ: up to {@code windowSize} frames may be in flight at once,
+ * each with its own retransmission timer. The receiver buffers frames that arrive out of order and
+ * acknowledges them selectively, so only frames that were actually lost are retransmitted.
+ * The retransmission timeout adapts to the round trip times measured on the connection (see {@code RttEstimator}).
+ *
+ * Acknowledgements ride in the header of every outbound frame. Frames received in order are acknowledged
+ * after a short delay, so that several of them are covered by one cumulative ACK, or by the next data frame
+ * if one is sent in the meantime. Frames received out of order, and SYN and FIN frames, are acknowledged at once.
+ *
+ * The connectionHost's sender thread sleeps while no connection has anything to send. A connection wakes it
+ * whenever it may have a frame ready: when something is queued, an ACK arrives, or a timer expires.
+ * Data frames are sent when the host's {@code TransmitScheduler} gives the connection its turn, in proportion to
+ * the connection's share. ACKs, SYN and FIN frames are control frames, which the host sends ahead of any data:
+ * a connection asks for them to be sent with {@code scheduleControl}.
+ *
+ * Outbound messages are queued without locking, and sliced into frames only as the send window opens.
+ * Frame payloads are read-only views into the queued message, so messages are never copied on the way out.
+ * Inbound messages are reassembled into a single buffer allocated when the first frame of the message arrives.
+ *
+ * Alongside messages, a connection carries a byte stream, accessed through {@code openChannel}.
+ * Stream data is sent in frames with the STR flag set, and is passed to the reader as the frames arrive.
+ *
+ * Flow control: every ACK advertises how many more bytes of data the receiver is prepared to buffer for its
+ * application, and the sender keeps the payload bytes in flight within the peer's latest advertised window.
+ * The receive buffer holds everything received that the application hasn't taken yet, including partly reassembled
+ * messages and frames received out of order, and data frames that arrive while it is full are not accepted.
+ * {@code sendMessage} and {@code writeStream} block while the send buffer is full, and {@code sendMessageAsync}
+ * returns a future that completes once the message has been acknowledged.
+ *
+ * Frames sent, retransmitted and acknowledged, round trip times, and how long messages wait in the send queue
+ * before their first frame is sent, are reported to the default {@code Metrics} under
+ * {@code connection.<source>-<dest>}, until the connection closes.
+ *
  * @author Oliver on 3/11/2018
  */
 public class Connection {
     private static final int MAX_FRAME_SIZE = 256;  // bytes
-    private static final long RESEND_TIMEOUT = 1000;  // milliseconds
+
+    static final long ACK_DELAY = 50;  // milliseconds
+    static final int DEFAULT_WINDOW_SIZE = 8;  // frames
+    // Frames the receiver buffers beyond the next expected one. Bounded by the 32-bit SACK bitmap.
+    static final int MAX_WINDOW_SIZE = 32;  // frames
+    static final int SEND_BUFFER_SIZE = 16 * 1024;  // bytes
+    static final int RECEIVE_BUFFER_SIZE = 16 * 1024;  // bytes
+    // Bounds the buffer that the message length in a BEG frame makes the receiver allocate.
+    static final int MAX_MESSAGE_SIZE = 16 * 1024 * 1024;  // bytes
 
     final Address source;
     final Address dest;
     final String name;
     private ConnectionHost connectionHost;
 
-    private volatile byte sendSeq = 0;
-    private volatile byte receiveSeq = 0;
+    private int windowSize = DEFAULT_WINDOW_SIZE;
+    private volatile int share = 1;
+    // Set while the connection is waiting in the host's queue of connections with control frames to send.
+    private final AtomicBoolean isControlScheduled = new AtomicBoolean();
+
+    // Send side. Frames in [sendBase, sendNext) are in flight, indexed by seq in sendWindow.
+    private short sendBase = 0;
+    private short sendNext = 0;
+    private final InFlightFrame[] sendWindow = new InFlightFrame[MAX_WINDOW_SIZE];
+    // Payload bytes in [sendBase, sendNext), kept within the window last advertised by the peer.
+    private int bytesInFlight = 0;
+    private int peerWindow = RECEIVE_BUFFER_SIZE;
 
-    private LinkedList<Frame> inFrames = new LinkedList<>();
+    // Receive side. Frames in [receiveBase, receiveBase + MAX_WINDOW_SIZE) are accepted, and held in
+    // receiveWindow until all frames before them have arrived.
+    private short receiveBase = 0;
+    private final Frame[] receiveWindow = new Frame[MAX_WINDOW_SIZE];
+
+    // The message being reassembled, allocated from the message length carried by its BEG frame.
+    private byte[] inMessage;
+    private int inMessageLength = 0;
+    // The length of inMessage, or 0. Read on any thread, for the receive buffer space.
+    private volatile int inMessageCapacity = 0;
     LinkedBlockingQueue<byte[]> inMessages = new LinkedBlockingQueue<>();
-    private LinkedList<Frame> outFrames = new LinkedList<>();
+    // Written to by any thread, and consumed only by send().
+    private final ConcurrentLinkedQueue<OutboundMessage> outMessages = new ConcurrentLinkedQueue<>();
+    // Bytes of messages and stream data that have not been sliced into frames yet.
+    // Writers waiting for it to drop below SEND_BUFFER_SIZE wait on sendBufferSpace. A lock rather than a monitor,
+    // so that virtual threads don't pin their carrier threads while they wait.
+    private final AtomicInteger outMessagesLength = new AtomicInteger();
+    private final ReentrantLock sendBufferLock = new ReentrantLock();
+    private final Condition sendBufferSpace = sendBufferLock.newCondition();
+
+    // Bytes of data received but not yet taken by the application: complete messages and stream data waiting to be
+    // read, the part of inMessage received so far, and the payloads of frames held in receiveWindow.
+    private final AtomicInteger receiveBufferLength = new AtomicInteger();
+    private volatile int advertisedWindow = RECEIVE_BUFFER_SIZE;
+
+    // Stream data. Payloads of received stream frames wait in inStream until they are read, followed by
+    // END_OF_STREAM once the peer's FIN has been received, or the connection closes.
+    private static final ByteBuffer END_OF_STREAM = ByteBuffer.allocate(0);
+    private final LinkedBlockingQueue<ByteBuffer> inStream = new LinkedBlockingQueue<>();
+    private ByteBuffer inStreamHead;  // the payload being read. Only accessed by the reader.
+
+    private final RttEstimator rttEstimator = new RttEstimator();
+    // In-flight frames whose retransmission timer has expired, waiting for the connectionHost to resend them.
+    private LinkedList<InFlightFrame> resendQueue = new LinkedList<>();
+    private volatile boolean isClosed = false;
+    // Tear down. Each side sends a FIN after its queued data, and the connection closes once both have been received
+    // and acknowledged. Nothing queued after our FIN is sent.
+    private final AtomicBoolean isFinQueued = new AtomicBoolean();
+    private boolean isFinSent = false;  // guarded by this
+    private boolean isFinAcked = false;  // our FIN and every frame before it. Guarded by this.
+    private boolean isFinReceived = false;  // guarded by this
 
-    private int framesAddedToQueue = 0;
-    private Timer resendTimer = new Timer();
-    private TimerTask resendTask;
+    // Delayed acknowledgement. An ACK is pending while some received frame hasn't been acknowledged,
+    // and due once ACK_DELAY has passed without a data frame to carry it.
+    private boolean isAckPending = false;
+    private boolean isAckDue = false;
+    private TimerWheel.Timeout ackTimeout;
+
+    private final Metrics.Counter framesSent;
+    private final Metrics.Counter framesRetransmitted;
+    private final Metrics.Counter framesAcked;
+    private final Metrics.Histogram rttMicros;
+    private final Metrics.Histogram queueWaitMicros;
 
     public Connection(ConnectionHost connectionHost, byte port, Address dest, String name) {
         this.connectionHost = connectionHost;
         this.source = new Address(connectionHost.localHost, port);
         this.dest = dest;
         this.name = name;
+
+        Metrics metrics = Metrics.getDefault();
+        String prefix = metricsPrefix();
+        framesSent = metrics.counter(prefix + "framesSent");
+        framesRetransmitted = metrics.counter(prefix + "framesRetransmitted");
+        framesAcked = metrics.counter(prefix + "framesAcked");
+        rttMicros = metrics.histogram(prefix + "rttMicros");
+        queueWaitMicros = metrics.histogram(prefix + "queueWaitMicros");
     }
 
     public Connection(ConnectionHost connectionHost, byte port, Address destAddress) {
@@ -42,181 +154,771 @@ public class Connection {
                 (new Address(connectionHost.localHost, port)).toString());
     }
 
+    private String metricsPrefix() {
+        return "connection." + source + "-" + dest + ".";
+    }
+
     /**
-     * Breaks up the given logical message as N frames, and adds them to the
-     * internal send queue.
+     * Returns the signed distance from sequence number {@code b} to {@code a}, modulo the 16-bit sequence space.
+     */
+    private static int seqDiff(short a, short b) {
+        return (short) (a - b);
+    }
+
+    private static int slot(short seq) {
+        return (seq & 0xFFFF) % MAX_WINDOW_SIZE;
+    }
+
+    /**
+     * Sets the maximum number of frames that may be sent without being acknowledged.
+     * A window size of 1 gives stop-and-wait behaviour.
      *
-     * N, the number of frames created, is equal to {@code ceil(message.length / MAX_FRAME_SIZE)}.
+     * @param windowSize the send window size, between 1 and {@code MAX_WINDOW_SIZE}
+     */
+    public synchronized void setWindowSize(int windowSize) {
+        if (windowSize < 1 || windowSize > MAX_WINDOW_SIZE) {
+            throw new IllegalArgumentException("Window size must be between 1 and " + MAX_WINDOW_SIZE);
+        }
+        this.windowSize = windowSize;
+    }
+
+    /**
+     * Sets this connection's share of the link, relative to the other connections of its host that have data
+     * to send at the same time. Control frames are sent ahead of data regardless of share.
+     *
+     * @param share the weight of this connection in the host's scheduler, at least 1
+     */
+    public void setShare(int share) {
+        if (share < 1) {
+            throw new IllegalArgumentException("Share must be at least 1");
+        }
+        this.share = share;
+    }
+
+    public int getShare() {
+        return share;
+    }
+
+    /**
+     * Adds the given logical message to the internal send queue, and returns immediately, even if the send buffer
+     * is full. The message will be broken up into N frames as it is sent, where
+     * N is equal to {@code ceil(message.length / MAX_FRAME_SIZE)}.
+     *
+     * The message is not copied: it must not be modified after it has been added to the queue.
      *
      * Frames will be physically sent when the connectionHost decides to do so.
      * @param message the logical message to send
+     * @throws IllegalArgumentException if the message is longer than {@code MAX_MESSAGE_SIZE}
      */
     public void addMessageToSendQueue(byte[] message) {
-        // slice message into frames
-        for (int from = 0; from < message.length; from += MAX_FRAME_SIZE) {
-            boolean beg = from == 0;
-            boolean end = from + MAX_FRAME_SIZE >= message.length;
-            Frame frame = new Frame(source, dest, (byte) framesAddedToQueue,
-                    false, false, false, beg, end, Frame.PROTOCOL_CONNECTION,
-                    Arrays.copyOfRange(message, from, Math.min(from + MAX_FRAME_SIZE, message.length)));
-            outFrames.add(frame);
-            framesAddedToQueue++;
+        sendMessageAsync(message);
+    }
+
+    /**
+     * Adds the given logical message to the internal send queue, first blocking while the send buffer is full.
+     * A message larger than the send buffer is queued once the send buffer is empty.
+     *
+     * The message is not copied: it must not be modified after it has been added to the queue.
+     *
+     * @param message the logical message to send
+     * @throws InterruptedException if interrupted while waiting
+     * @throws ClosedChannelException if the connection is closed
+     * @throws IllegalArgumentException if the message is longer than {@code MAX_MESSAGE_SIZE}
+     */
+    public void sendMessage(byte[] message) throws InterruptedException, ClosedChannelException {
+        checkMessageLength(message.length);
+        if (!reserveSendBuffer(message.length)) {
+            throw new ClosedChannelException();
         }
+        queueMessage(message, null);
+    }
+
+    /**
+     * Adds the given logical message to the internal send queue, and returns immediately.
+     *
+     * The message is not copied: it must not be modified after it has been added to the queue.
+     *
+     * @param message the logical message to send
+     * @return a future that completes once the whole message has been acknowledged, or completes exceptionally
+     * with a {@code ClosedChannelException} if the connection closes first. Dependent stages run on the common pool
+     * unless added after completion.
+     * @throws IllegalArgumentException if the message is longer than {@code MAX_MESSAGE_SIZE}
+     */
+    public CompletableFuture<Void> sendMessageAsync(byte[] message) {
+        checkMessageLength(message.length);
+        CompletableFuture<Void> completion = new CompletableFuture<>();
+        outMessagesLength.addAndGet(message.length);
+        queueMessage(message, completion);
+        return completion;
     }
 
+    static void checkMessageLength(int length) {
+        if (length > MAX_MESSAGE_SIZE) {
+            throw new IllegalArgumentException("Message of " + length + " bytes exceeds " + MAX_MESSAGE_SIZE);
+        }
+    }
+
+    private void queueMessage(byte[] message, CompletableFuture<Void> completion) {
+        if (message.length == 0) {
+            if (completion != null) {
+                completion.complete(null);
+            }
+            return;
+        }
+        outMessages.add(new OutboundMessage(ByteBuffer.wrap(message).asReadOnlyBuffer(), false, completion));
+        if (isClosed) {
+            // Raced with close(), which may have missed the message.
+            failPendingSends();
+        }
+        connectionHost.wakeSender();
+    }
+
+    /**
+     * Waits until {@code length} more bytes fit in the send buffer, and reserves them.
+     *
+     * @return {@code false} if the connection is closed
+     */
+    private boolean reserveSendBuffer(int length) throws InterruptedException {
+        sendBufferLock.lockInterruptibly();
+        try {
+            while (!isClosed) {
+                int queued = outMessagesLength.get();
+                if (queued == 0 || queued + length <= SEND_BUFFER_SIZE) {
+                    if (outMessagesLength.compareAndSet(queued, queued + length)) {
+                        return true;
+                    }
+                } else {
+                    sendBufferSpace.await();
+                }
+            }
+            return false;
+        } finally {
+            sendBufferLock.unlock();
+        }
+    }
+
+    private void releaseSendBuffer(int length) {
+        if (outMessagesLength.addAndGet(-length) < SEND_BUFFER_SIZE) {
+            signalSendBuffer();
+        }
+    }
+
+    private void signalSendBuffer() {
+        sendBufferLock.lock();
+        try {
+            sendBufferSpace.signalAll();
+        } finally {
+            sendBufferLock.unlock();
+        }
+    }
+
+    /**
+     * Removes and returns the next message received, blocking until one arrives.
+     *
+     * @return the next message, or {@code null} if interrupted, in which case the interrupt status is set
+     */
     public byte[] getMessage() {
         try {
-            return inMessages.take();
+            byte[] message = inMessages.take();
+            releaseReceiveBuffer(message.length);
+            return message;
         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             return null;
         }
     }
 
+    /**
+     * Returns the number of bytes of data this connection will accept before the application takes some.
+     * The receive buffer stretches to hold all of a message longer than {@code RECEIVE_BUFFER_SIZE} while it is
+     * reassembled, since the message's buffer was allocated when its BEG frame arrived.
+     *
+     * @return the space left in the receive buffer, in bytes, up to {@code Frame.MAX_WINDOW}
+     */
+    private int receiveBufferSpace() {
+        int capacity = Math.max(RECEIVE_BUFFER_SIZE, inMessageCapacity);
+        return Math.min(Frame.MAX_WINDOW, Math.max(0, capacity - receiveBufferLength.get()));
+    }
+
+    /**
+     * Frees {@code length} bytes of the receive buffer. If the peer was last told that the window was too small
+     * for a full frame, and now it isn't, a window update is sent.
+     */
+    private void releaseReceiveBuffer(int length) {
+        receiveBufferLength.addAndGet(-length);
+        if (advertisedWindow < MAX_FRAME_SIZE && receiveBufferSpace() >= MAX_FRAME_SIZE) {
+            synchronized (this) {
+                isAckDue = true;
+            }
+            scheduleControl();
+        }
+    }
+
+    /**
+     * Opens a channel on this connection's byte stream. Data written to the channel is sent in frames of up to
+     * {@code MAX_FRAME_SIZE} bytes as it is written, and data is available for reading as soon as it arrives.
+     * Use {@code Channels.newInputStream} and {@code Channels.newOutputStream} for stream access.
+     *
+     * Closing the channel closes the connection. Every channel opened on a connection shares the same stream.
+     *
+     * @return a channel for reading and writing the connection's byte stream
+     */
+    public ConnectionChannel openChannel() {
+        return new ConnectionChannel(this);
+    }
+
+    /**
+     * Adds the contents of {@code src} to the stream, blocking while the send buffer is full.
+     *
+     * @param src the data to write
+     * @return the number of bytes written, which is all of {@code src}
+     * @throws ClosedChannelException if the connection is closed, or closes while waiting, in which case
+     *                                {@code src} is left positioned after the bytes already queued
+     * @throws InterruptedException   if interrupted while waiting
+     */
+    int writeStream(ByteBuffer src) throws ClosedChannelException, InterruptedException {
+        int written = 0;
+        while (src.hasRemaining()) {
+            int length = Math.min(src.remaining(), MAX_FRAME_SIZE);
+            if (!reserveSendBuffer(length)) {
+                throw new ClosedChannelException();
+            }
+            // The caller may reuse src, so its contents are copied once, straight into the frame's payload.
+            byte[] chunk = new byte[length];
+            src.get(chunk);
+            outMessages.add(new OutboundMessage(ByteBuffer.wrap(chunk).asReadOnlyBuffer(), true, null));
+            connectionHost.wakeSender();
+            written += length;
+        }
+        return written;
+    }
+
+    /**
+     * Reads stream data into {@code dst}, blocking until at least one byte is available.
+     * Must only be called by one thread at a time.
+     *
+     * @param dst the buffer to read into
+     * @return the number of bytes read, or -1 once the peer's FIN has been received and all stream data has been read
+     * @throws InterruptedException if interrupted while waiting
+     */
+    int readStream(ByteBuffer dst) throws InterruptedException {
+        if (!dst.hasRemaining()) {
+            return 0;
+        }
+        while (inStreamHead == null || (inStreamHead != END_OF_STREAM && !inStreamHead.hasRemaining())) {
+            inStreamHead = inStream.take();
+        }
+        int read = 0;
+        while (inStreamHead != null && inStreamHead != END_OF_STREAM && dst.hasRemaining()) {
+            int length = Math.min(dst.remaining(), inStreamHead.remaining());
+            ByteBuffer chunk = inStreamHead.duplicate();
+            chunk.limit(chunk.position() + length);
+            dst.put(chunk);
+            inStreamHead.position(inStreamHead.position() + length);
+            read += length;
+            if (!inStreamHead.hasRemaining()) {
+                inStreamHead = inStream.poll();
+            }
+        }
+        if (read == 0) {
+            return -1;
+        }
+        releaseReceiveBuffer(read);
+        return read;
+    }
+
     /**
      * Adds a SYN frame to the internal send queue, and returns immediately.
      * Frame will be physically sent when the connectionHost decides to do so.
      */
     public void addSynToSendQueue() {
-        Frame synRequest = new Frame(source, dest, (byte) framesAddedToQueue,
-                true, false, false, false, false, Frame.PROTOCOL_CONNECTION);
-        outFrames.add(synRequest);
-        framesAddedToQueue++;
+        outMessages.add(new OutboundMessage(null, true, false, false, null));
+        scheduleControl();
     }
 
     /**
-     * Adds a FIN frame to the internal send queue, and returns immediately.
-     * Frame will be physically sent when the connectionHost decides to do so.
+     * Adds a FIN frame to the internal send queue, unless there already is one, and returns immediately.
+     * Frame will be physically sent when the connectionHost decides to do so, after the messages already queued.
+     * Messages queued later are never sent.
      */
     public void addFinToSendQueue() {
-        Frame finRequest = new Frame(source, dest, (byte) framesAddedToQueue,
-                false, false, true, false, false, Frame.PROTOCOL_CONNECTION);
-        outFrames.add(finRequest);
-        framesAddedToQueue++;
+        if (isFinQueued.compareAndSet(false, true)) {
+            outMessages.add(new OutboundMessage(null, false, true, false, null));
+            scheduleControl();
+        }
     }
 
     /**
-     * Sends the next frame from the internal send queue to the connectionHost, if the next
-     * queued frame has the next expected sequence number.
-     * A retransmission timer with period {@code retransTimeout} is started after the send if an ACK is not
-     * received before {@code retransTimeout}.
+     * @return {@code true} once this connection's FIN, and everything sent before it, has been acknowledged,
+     * and the peer's FIN has been received
+     */
+    public boolean isClosed() {
+        return isClosed;
+    }
+
+    /**
+     * @return the current retransmission timeout, in milliseconds
+     */
+    public long getRetransmissionTimeout() {
+        return rttEstimator.rto();
+    }
+
+    /**
+     * Sends the next frame that is due for retransmission, or else the next frame from the internal send queue
+     * if both the send window and the peer's advertised window have room for it, to the connectionHost.
+     * Else, if a delayed ACK is due, sends a bare ACK.
+     * Every frame sent carries an acknowledgement of the frames received so far.
+     *
+     * A retransmission timer is started for the frame on the connectionHost's timer wheel, and the frame is
+     * queued for retransmission each time it expires until the frame is acknowledged.
+     * Expiries double the retransmission timeout, once for all the frames that were sent with the same timeout.
      *
      * This method should only be called from the connectionHost.
+     * @return the number of bytes sent, or 0 if there was nothing to send
      */
-    public void send() {
-        if (!outFrames.isEmpty() && sendSeq == outFrames.getFirst().seq) {
-            Frame outFrame = outFrames.remove(0);
-            System.out.printf("%-45s", System.currentTimeMillis() + " " + name + " sent: ");
-            System.out.println(outFrame);
-            connectionHost.send(outFrame);
-
-            resendTask = new TimerTask() {
-                @Override
-                public void run() {
-                    if (connectionHost.isSending()) {
-                        // If the ConnectionHost is already busy, sending a frame will cause
-                        // future TimerTasks to be piled up into a queue.
-                        // TODO: This isSending rarely returns true even when it should
-                        return;
-                    }
-                    if (outFrame.seq == sendSeq) {
-                        System.out.printf("%-45s", System.currentTimeMillis() + " " + name + " resent: ");
-                        System.out.println(outFrame);
-                        connectionHost.send(outFrame);
-                    }
+    public int send() {
+        return send(false);
+    }
+
+    /**
+     * Like {@code send}, but only sends a frame if it is a control frame: a SYN or FIN, or a due ACK.
+     *
+     * This method should only be called from the connectionHost.
+     * @return the number of bytes sent, or 0 if there was no control frame to send
+     */
+    int sendControl() {
+        isControlScheduled.set(false);
+        return send(true);
+    }
+
+    private int send(boolean isControlOnly) {
+        Frame outFrame;
+        boolean isResend = false;
+        synchronized (this) {
+            if (isClosed) {
+                return 0;
+            }
+            InFlightFrame inFlight = null;
+            if (!resendQueue.isEmpty() && (!isControlOnly || isControl(resendQueue.getFirst().frame))) {
+                inFlight = resendQueue.removeFirst();
+                isResend = true;
+            } else if (!isFinSent && !outMessages.isEmpty() && (!isControlOnly || outMessages.peek().payload == null)
+                    && seqDiff(sendNext, sendBase) < windowSize && isPeerWindowOpen()) {
+                inFlight = nextFrame();
+                sendWindow[slot(sendNext)] = inFlight;
+                sendNext++;
+                bytesInFlight += inFlight.frame.payloadLength();
+                OutboundMessage next = outMessages.peek();
+                if (next != null && next.payload == null) {
+                    // A SYN or FIN has reached the head of the queue.
+                    scheduleControl();
                 }
-            };
-            resendTimer.schedule(resendTask, RESEND_TIMEOUT, RESEND_TIMEOUT);
+            } else if (!isAckDue) {
+                return 0;
+            }
+            if (inFlight != null) {
+                inFlight.isQueuedForResend = false;
+                inFlight.scheduleResend();
+                outFrame = inFlight.frame;
+                if (!outFrame.syn) {
+                    attachAck(outFrame);
+                }
+            } else {
+                outFrame = createAck();
+            }
         }
+        connectionHost.trace(isResend ? FrameTrace.RESENT : FrameTrace.SENT, outFrame);
+        framesSent.increment();
+        if (isResend) {
+            framesRetransmitted.increment();
+        }
+        connectionHost.send(outFrame);
+        return outFrame.headerLength() + outFrame.payloadLength();
     }
 
+    private static boolean isControl(Frame frame) {
+        return frame.syn || frame.fin;
+    }
+
+    /**
+     * Asks the connectionHost to call {@code sendControl} ahead of any data frames.
+     * Safe to call from any thread, including while holding the lock on the connection.
+     */
+    private void scheduleControl() {
+        if (isControlScheduled.compareAndSet(false, true)) {
+            connectionHost.scheduleControl(this);
+        }
+    }
 
     /**
      * Receives the given frame from the connectionHost.
-     * If the frame is an ack for the last frame, retransmission of the last frame will be canceled
-     * and the send seq will be incremented.
-     * If the frame seq is the one expected next, the frame is added to the internal receive queue.
-     * Else, the frame must have a wrong sequence number and is ignored.
+     * If the frame carries an acknowledgement, every frame it acknowledges (cumulatively or selectively)
+     * has its retransmission canceled, and the send window slides past the acknowledged frames.
+     * If the frame is within the receive window, it is buffered until every frame before it has arrived,
+     * and then passed on for message reassembly in order. Else, the frame is a duplicate or too far ahead and is ignored.
      *
-     * Finally, if the frame is not an ack, an ack is sent (even if it is not added to the receive buffer).
+     * Finally, if the frame takes up a sequence number, an ACK describing the receive window is sent
+     * (even if the frame was not buffered), as a control frame from the connectionHost's sender thread.
      *
      * This method should only be called from the connectionHost.
      * @param inFrame the frame to receive from the connectionHost
      */
     public void receive(Frame inFrame) {
-//        if (inFrame.ack) {
-//            if (inFrame.seq == sendSeq) {
-//                System.out.printf("%-45s", System.currentTimeMillis() + " " + name + " received: ");
-//                System.out.println(inFrame);
-//                sendSeq++;
-//                resendTask.cancel();
-//            } else {
-//                System.out.printf("%-45s", System.currentTimeMillis() + " " + name + " ignored: ");
-//                System.out.println(inFrame);
-//            }
-//        } else {
-//            if (inFrame.seq == receiveSeq) {
-//                if (!inFrame.syn && !inFrame.fin) {
-//                    inFrames.addConnection(inFrame);
-//                }
-//                System.out.printf("%-45s", System.currentTimeMillis() + " " + name + " received: ");
-//                System.out.println(inFrame);
-//                receiveSeq++;
-//            } else {
-//                System.out.printf("%-45s", System.currentTimeMillis() + " " + name + " ignored: ");
-//                System.out.println(inFrame);
-//            }
-//            // Always echo back an ACK of the incoming frame, with the payload removed.
-//            Frame ack = new Frame(source, dest, inFrame.seq, inFrame.syn, true, inFrame.fin,
-//                    Frame.PROTOCOL_CONNECTION);
-//            System.out.printf("%-45s", System.currentTimeMillis() + " " + name + " sent: ");
-//            System.out.println(ack);
-//            connectionHost.send(ack);
-//        }
-        if (inFrame.ack && inFrame.seq == sendSeq) {
-            System.out.printf("%-45s", System.currentTimeMillis() + " " + name + " received: ");
-            System.out.println(inFrame);
-            sendSeq++;
-            resendTask.cancel();
-        } else if (inFrame.seq == receiveSeq) {
-            if (!inFrame.syn && !inFrame.fin) {
-                inFrames.add(inFrame);
-                if (inFrames.getFirst().beg && inFrames.getLast().end) {
-                    // Full message has been received. Extract payloads into a message.
-                    int messageLength = 0;
-                    for (Frame frame : inFrames) {
-                        messageLength += frame.payload.length;
+        Frame ack = null;
+        synchronized (this) {
+            if (inFrame.ack) {
+                receiveAck(inFrame.ackSeq, inFrame.sack, inFrame.window);
+            }
+            if (inFrame.isSequenced()) {
+                int offset = seqDiff(inFrame.seq, receiveBase);
+                int delivered = 0;
+                boolean isRefused = inFrame.payloadLength() > 0 && receiveBufferSpace() == 0;
+                if (offset >= 0 && offset < MAX_WINDOW_SIZE && !isRefused) {
+                    if (receiveWindow[slot(inFrame.seq)] == null) {
+                        // Takes up receive buffer space until the application takes the data, or it is dropped.
+                        receiveBufferLength.addAndGet(inFrame.payloadLength());
+                        receiveWindow[slot(inFrame.seq)] = inFrame;
                     }
-                    byte[] message = new byte[messageLength];
-                    int from = 0;
-                    for (Frame frame : inFrames) {
-                        System.arraycopy(frame.payload, 0, message, from, frame.payload.length);
-                        from += frame.payload.length;
+                    while (receiveWindow[slot(receiveBase)] != null) {
+                        Frame next = receiveWindow[slot(receiveBase)];
+                        receiveWindow[slot(receiveBase)] = null;
+                        receiveBase++;
+                        deliver(next);
+                        delivered++;
                     }
-                    try {
-                        inMessages.put(message);
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
+                    connectionHost.trace(FrameTrace.RECEIVED, inFrame);
+                } else {
+                    // Duplicate, too far ahead, or the receive buffer is full.
+                    // The ACK won't cover the frame, so it is retransmitted later.
+                    connectionHost.trace(FrameTrace.IGNORED, inFrame);
+                }
+                if (offset != 0 || delivered > 1 || isRefused || inFrame.syn || inFrame.fin) {
+                    // Out of order, duplicate, refused, or filling a gap: let the sender know about it straight away.
+                    ack = createAck();
+                } else if (!isAckPending) {
+                    isAckPending = true;
+                    ackTimeout = connectionHost.timerWheel.schedule(this::expireAckDelay, ACK_DELAY);
+                }
+            } else {
+                connectionHost.trace(FrameTrace.RECEIVED, inFrame);
+            }
+            if (isClosed) {
+                for (int i = 0; seqDiff((short) (sendBase + i), sendNext) < 0; i++) {
+                    sendWindow[slot((short) (sendBase + i))].resendTimeout.cancel();
+                }
+                resendQueue.clear();
+                if (ackTimeout != null) {
+                    ackTimeout.cancel();
+                }
+            }
+        }
+        if (inFrame.ack) {
+            // The ACK may have opened the send window.
+            connectionHost.wakeSender();
+        }
+        if (ack != null) {
+            connectionHost.trace(FrameTrace.SENT, ack);
+            connectionHost.queueControlFrame(ack);
+        }
+    }
+
+    /**
+     * Marks every in-flight frame before {@code ackSeq}, and every frame selected by {@code sack}, as acknowledged,
+     * slides the send window forward, and takes note of the peer's receive window.
+     */
+    private void receiveAck(short ackSeq, int sack, int window) {
+        int inFlight = seqDiff(sendNext, sendBase);
+        int acked = seqDiff(ackSeq, sendBase);
+        if (acked < 0 || acked > inFlight) {
+            // stale, or acknowledges frames that were never sent
+            return;
+        }
+        boolean isWindowReopened = peerWindow < MAX_FRAME_SIZE && window >= MAX_FRAME_SIZE;
+        peerWindow = window;
+        long now = connectionHost.clock.nanoTime();
+        InFlightFrame newest = null;
+        for (int i = 0; i < acked; i++) {
+            newest = acknowledge((short) (sendBase + i), newest);
+        }
+        for (int i = 0; i < MAX_WINDOW_SIZE && seqDiff((short) (ackSeq + 1 + i), sendNext) < 0; i++) {
+            if ((sack & (1 << i)) != 0) {
+                newest = acknowledge((short) (ackSeq + 1 + i), newest);
+            }
+        }
+        if (newest != null) {
+            // One measurement per ACK, from the most recently sent frame it acknowledges.
+            rttEstimator.sample(now - newest.sentAt);
+            rttMicros.record(TimeUnit.NANOSECONDS.toMicros(now - newest.sentAt));
+        }
+        while (sendBase != sendNext && sendWindow[slot(sendBase)].isAcked) {
+            InFlightFrame done = sendWindow[slot(sendBase)];
+            sendWindow[slot(sendBase)] = null;
+            sendBase++;
+            bytesInFlight -= done.frame.payloadLength();
+            if (done.completion != null) {
+                ForkJoinPool.commonPool().execute(() -> done.completion.complete(null));
+            }
+            if (done.frame.fin) {
+                isFinAcked = true;
+                if (isFinReceived) {
+                    close();
+                }
+            }
+        }
+        if (isWindowReopened && sendBase != sendNext) {
+            // The oldest frame was likely refused while the window was closed. Resend it without waiting for its timer.
+            InFlightFrame oldest = sendWindow[slot(sendBase)];
+            if (!oldest.isQueuedForResend) {
+                oldest.resendTimeout.cancel();
+                oldest.isRetransmitted = true;
+                oldest.isQueuedForResend = true;
+                resendQueue.add(oldest);
+            }
+        }
+    }
+
+    /**
+     * @return {@code true} if the next frame in the send queue fits in the peer's receive window. With nothing
+     * in flight, a frame is always allowed, to probe a closed window.
+     */
+    private boolean isPeerWindowOpen() {
+        OutboundMessage next = outMessages.peek();
+        int length = next.payload == null ? 0 : Math.min(MAX_FRAME_SIZE, next.payload.limit() - next.sent);
+        return length == 0 || sendBase == sendNext || bytesInFlight + length <= peerWindow;
+    }
+
+    /**
+     * Marks the in-flight frame with the given seq as acknowledged.
+     *
+     * @param newest the most recently sent frame acknowledged so far that can be used to measure the round trip time
+     * @return {@code newest}, or the given frame if it was newly acknowledged, never retransmitted, and sent later
+     */
+    private InFlightFrame acknowledge(short seq, InFlightFrame newest) {
+        InFlightFrame inFlight = sendWindow[slot(seq)];
+        if (inFlight.isAcked) {
+            return newest;
+        }
+        inFlight.isAcked = true;
+        inFlight.resendTimeout.cancel();
+        framesAcked.increment();
+        if (inFlight.isQueuedForResend) {
+            resendQueue.remove(inFlight);
+        }
+        // Karn's algorithm: the ACK of a retransmitted frame is ambiguous.
+        if (!inFlight.isRetransmitted && (newest == null || inFlight.sentAt - newest.sentAt > 0)) {
+            return inFlight;
+        }
+        return newest;
+    }
+
+    /**
+     * Makes a delayed ACK due, if one is still pending. Runs on the timer wheel, so the ACK itself is sent
+     * by the connectionHost.
+     */
+    private void expireAckDelay() {
+        synchronized (this) {
+            if (!isAckPending) {
+                return;
+            }
+            isAckDue = true;
+        }
+        scheduleControl();
+    }
+
+    /**
+     * Takes the next frame, numbered {@code sendNext}, from the message at the head of the send queue.
+     * The frame's payload is a view of the message, and the message is removed from the queue
+     * once its last frame has been taken.
+     */
+    private InFlightFrame nextFrame() {
+        OutboundMessage message = outMessages.peek();
+        if (message.sent == 0) {
+            queueWaitMicros.record(TimeUnit.NANOSECONDS.toMicros(connectionHost.clock.nanoTime() - message.queuedAt));
+        }
+        if (message.payload == null) {
+            outMessages.poll();
+            isFinSent |= message.fin;
+            return new InFlightFrame(new Frame(source, dest, sendNext,
+                    message.syn, false, message.fin, false, false, Frame.PROTOCOL_CONNECTION), null);
+        }
+        if (message.isStream) {
+            outMessages.poll();
+            releaseSendBuffer(message.payload.remaining());
+            Frame frame = new Frame(source, dest, sendNext,
+                    false, false, false, false, false, Frame.PROTOCOL_CONNECTION, message.payload);
+            frame.str = true;
+            return new InFlightFrame(frame, null);
+        }
+        int from = message.sent;
+        int to = Math.min(from + MAX_FRAME_SIZE, message.payload.limit());
+        ByteBuffer slice = message.payload.duplicate();
+        slice.limit(to);
+        slice.position(from);
+        Frame frame = new Frame(source, dest, sendNext,
+                false, false, false, from == 0, to == message.payload.limit(), Frame.PROTOCOL_CONNECTION,
+                slice.slice());
+        if (frame.beg) {
+            frame.messageLength = message.payload.limit();
+        }
+        message.sent = to;
+        releaseSendBuffer(to - from);
+        if (frame.end) {
+            outMessages.poll();
+        }
+        return new InFlightFrame(frame, frame.end ? message.completion : null);
+    }
+
+    /**
+     * Sets the acknowledgement fields of the given outbound frame: everything before {@code receiveBase}
+     * is acknowledged cumulatively, and the frames buffered out of order after it selectively.
+     * Any pending delayed ACK is satisfied by the frame.
+     */
+    private void attachAck(Frame frame) {
+        int sack = 0;
+        for (int i = 0; i < MAX_WINDOW_SIZE - 1; i++) {
+            if (receiveWindow[slot((short) (receiveBase + 1 + i))] != null) {
+                sack |= 1 << i;
+            }
+        }
+        frame.ack = true;
+        frame.ackSeq = receiveBase;
+        frame.sack = sack;
+        frame.window = receiveBufferSpace();
+        advertisedWindow = frame.window;
+
+        isAckPending = false;
+        isAckDue = false;
+        if (ackTimeout != null) {
+            ackTimeout.cancel();
+            ackTimeout = null;
+        }
+    }
+
+    /**
+     * @return a bare ACK frame describing the receive window
+     */
+    private Frame createAck() {
+        Frame ack = new Frame(source, dest, sendNext,
+                false, true, false, false, false, Frame.PROTOCOL_CONNECTION);
+        attachAck(ack);
+        return ack;
+    }
+
+    /**
+     * Passes the given in-order frame on for message reassembly.
+     */
+    private void deliver(Frame frame) {
+        if (frame.fin && !isFinReceived) {
+            // The peer has nothing more to send. Answer with our FIN once our queued data has been sent,
+            // and close once it is acknowledged.
+            isFinReceived = true;
+            inStream.add(END_OF_STREAM);
+            if (isFinAcked) {
+                close();
+            } else {
+                addFinToSendQueue();
+            }
+        }
+        if (frame.syn || frame.fin) {
+            return;
+        }
+        if (frame.str) {
+            // Stream data.
+            inStream.add(frame.payload);
+            return;
+        }
+        if (frame.beg) {
+            if (inMessage != null) {
+                // The previous message never ended.
+                dropMessage(0);
+            }
+            // The length comes off the wire: check it before allocating. A message that is invalid is dropped.
+            if (frame.messageLength < frame.payloadLength() || frame.messageLength > MAX_MESSAGE_SIZE) {
+                dropMessage(frame.payloadLength());
+                return;
+            }
+            inMessage = new byte[frame.messageLength];
+            inMessageLength = 0;
+            inMessageCapacity = frame.messageLength;
+        }
+        if (inMessage == null || inMessageLength + frame.payloadLength() > inMessage.length) {
+            // Not part of a valid message whose start was received, or longer than its BEG frame said.
+            dropMessage(frame.payloadLength());
+            return;
+        }
+        frame.payload.duplicate().get(inMessage, inMessageLength, frame.payloadLength());
+        inMessageLength += frame.payloadLength();
+        if (frame.end) {
+            if (inMessageLength < inMessage.length) {
+                // Shorter than its BEG frame said.
+                dropMessage(0);
+                return;
+            }
+            // Full message has been received.
+            inMessages.add(inMessage);
+            inMessage = null;
+            inMessageCapacity = 0;
+        }
+    }
+
+    /**
+     * Abandons the message being reassembled, if any, freeing the receive buffer space taken by the part of it
+     * received so far, and by a dropped frame of {@code length} bytes.
+     */
+    private void dropMessage(int length) {
+        if (inMessage != null) {
+            length += inMessageLength;
+            inMessage = null;
+        }
+        inMessageCapacity = 0;
+        releaseReceiveBuffer(length);
+    }
+
+    /**
+     * Marks the connection closed, releasing blocked writers and failing sends that are still pending,
+     * and ends the stream for readers.
+     */
+    private void close() {
+        if (!isClosed) {
+            isClosed = true;
+            if (!isFinReceived) {
+                inStream.add(END_OF_STREAM);
+            }
+            signalSendBuffer();
+            // A message got through if all of its frames, and so all in-flight frames before its end, were acknowledged.
+            boolean isAllAcked = true;
+            for (int i = 0; seqDiff((short) (sendBase + i), sendNext) < 0; i++) {
+                InFlightFrame inFlight = sendWindow[slot((short) (sendBase + i))];
+                isAllAcked &= inFlight.isAcked;
+                if (inFlight.completion != null) {
+                    if (isAllAcked) {
+                        ForkJoinPool.commonPool().execute(() -> inFlight.completion.complete(null));
+                    } else {
+                        fail(inFlight.completion);
                     }
-                    inFrames.clear();
                 }
             }
-            System.out.printf("%-45s", System.currentTimeMillis() + " " + name + " received: ");
-            System.out.println(inFrame);
-            receiveSeq++;
-        } else {
-            System.out.printf("%-45s", System.currentTimeMillis() + " " + name + " ignored: ");
-            System.out.println(inFrame);
+            failPendingSends();
+            Metrics.getDefault().remove(metricsPrefix());
         }
-        if (!inFrame.ack) {
-            // Always send an ACK if inFrame isn't one.
-            Frame ack = new Frame(source, dest, inFrame.seq,
-                    inFrame.syn, true, inFrame.fin, false, false, Frame.PROTOCOL_CONNECTION);
-            System.out.printf("%-45s", System.currentTimeMillis() + " " + name + " sent: ");
-            System.out.println(ack);
-            connectionHost.send(ack);
+    }
+
+    /**
+     * Fails every message still in the send queue. Nothing is sent once the connection is closed.
+     */
+    private void failPendingSends() {
+        OutboundMessage message;
+        while ((message = outMessages.poll()) != null) {
+            if (message.completion != null) {
+                fail(message.completion);
+            }
         }
     }
 
+    private static void fail(CompletableFuture<Void> completion) {
+        ForkJoinPool.commonPool().execute(() -> completion.completeExceptionally(new ClosedChannelException()));
+    }
+
     @Override
     public boolean equals(Object other) {
         if (other == null) return false;
@@ -226,4 +928,88 @@ public class Connection {
         return otherConnection.source.equals(source) &&
                 otherConnection.dest.equals(dest);
     }
+
+    /**
+     * @return the key of this connection in its host's {@code ConnectionIndex}
+     */
+    @Override
+    public int hashCode() {
+        return ConnectionIndex.key(source, dest);
+    }
+
+    /**
+     * A message, chunk of stream data, SYN or FIN in the send queue. Messages are sent in frames from
+     * {@code sent} onwards. Stream chunks fit in one frame.
+     */
+    private class OutboundMessage {
+        final ByteBuffer payload;  // null for SYN and FIN
+        final boolean syn;
+        final boolean fin;
+        final boolean isStream;
+        final CompletableFuture<Void> completion;  // completed once the message is acknowledged, or null
+        final long queuedAt = connectionHost.clock.nanoTime();
+        int sent = 0;
+
+        OutboundMessage(ByteBuffer payload, boolean syn, boolean fin, boolean isStream,
+                        CompletableFuture<Void> completion) {
+            this.payload = payload;
+            this.syn = syn;
+            this.fin = fin;
+            this.isStream = isStream;
+            this.completion = completion;
+        }
+
+        OutboundMessage(ByteBuffer payload, boolean isStream, CompletableFuture<Void> completion) {
+            this(payload, false, false, isStream, completion);
+        }
+    }
+
+    /**
+     * A frame that has been sent and is awaiting acknowledgement.
+     */
+    private class InFlightFrame {
+        final Frame frame;
+        final CompletableFuture<Void> completion;  // for the last frame of a message sent with a future
+        final long sentAt = connectionHost.clock.nanoTime();
+        long lastSentAt;
+        TimerWheel.Timeout resendTimeout;
+        boolean isAcked = false;
+        boolean isRetransmitted = false;
+        boolean isQueuedForResend = false;
+
+        InFlightFrame(Frame frame, CompletableFuture<Void> completion) {
+            this.frame = frame;
+            this.completion = completion;
+        }
+
+        /**
+         * Schedules a retransmission of the frame after the current retransmission timeout.
+         * Must be called while holding the lock on the connection.
+         */
+        void scheduleResend() {
+            lastSentAt = connectionHost.clock.nanoTime();
+            resendTimeout = connectionHost.timerWheel.schedule(this::expire, rttEstimator.rto());
+        }
+
+        /**
+         * Queues the frame for retransmission. Runs on the timer wheel, so the frame itself is sent
+         * by the connectionHost.
+         */
+        private void expire() {
+            synchronized (Connection.this) {
+                if (isAcked || isClosed || isQueuedForResend) {
+                    return;
+                }
+                isRetransmitted = true;
+                isQueuedForResend = true;
+                rttEstimator.backoff(lastSentAt, connectionHost.clock.nanoTime());
+                resendQueue.add(this);
+            }
+            if (isControl(frame)) {
+                scheduleControl();
+            } else {
+                connectionHost.wakeSender();
+            }
+        }
+    }
 }
@@ -0,0 +1,75 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+
+/**
+ * Blocking {@code ByteChannel} over the byte stream of a {@code Connection}, for data that is too large,
+ * or arrives too gradually, to be sent as a single message. Obtained with {@code Connection.openChannel}.
+ * <p>
+ * Writes return once all the data has been queued for sending, blocking while the connection's send window
+ * worth of data is already waiting, and throw {@code ClosedChannelException} if the connection closes. Reads block until some data has arrived, and return -1 once the
+ * peer has closed its side of the connection and all the data it sent before has been read.
+ */
+public class ConnectionChannel implements ByteChannel {
+    private final Connection connection;
+    private final Object readLock = new Object();
+    private final Object writeLock = new Object();
+    private volatile boolean isOpen = true;
+
+    ConnectionChannel(Connection connection) {
+        this.connection = connection;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        synchronized (readLock) {
+            ensureOpen();
+            try {
+                return connection.readStream(dst);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        synchronized (writeLock) {
+            ensureOpen();
+            try {
+                return connection.writeStream(src);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    /**
+     * @return {@code true} until this channel is closed, or the connection closes
+     */
+    @Override
+    public boolean isOpen() {
+        return isOpen && !connection.isClosed();
+    }
+
+    /**
+     * Closes the channel, and queues a FIN to close the connection after the data already written.
+     */
+    @Override
+    public synchronized void close() {
+        if (isOpen) {
+            isOpen = false;
+            connection.addFinToSendQueue();
+        }
+    }
+
+    private void ensureOpen() throws ClosedChannelException {
+        if (!isOpen) {
+            throw new ClosedChannelException();
+        }
+    }
+}
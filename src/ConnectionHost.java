@@ -1,5 +1,14 @@
 import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 /**
  * Coordinates the sending and receiving of frames between Connections - acts as a host for Connections.
@@ -11,39 +20,120 @@ import java.util.*;
  * Contains Ping utility, to test the reachability of other hosts,
  * as well as the quality of the link, and round trip time.
  *
+ * All frames are transmitted from the sender threads, in two classes. Control frames (ACKs, SYN, FIN and pings)
+ * have strict priority: whenever any are waiting they are sent before the next data frame. Data frames are sent
+ * from the connections in the order chosen by a {@code TransmitScheduler}, by default deficit round robin
+ * weighted by each connection's share, so a bulk transfer on one connection cannot starve the others.
+ *
+ * Frames addressed to the broadcast host are received by every host, and frames addressed to a multicast group
+ * (see {@code Address}) by the hosts that joined it with {@code joinGroup}, so one transmission reaches them all.
+ * Connections are unicast only. {@code PROTOCOL_MULTICAST} frames are passed to the {@code MulticastChannel}
+ * listening on their destination address, and sent in turns alternating with the connections' data frames.
+ *
+ * On a shared medium, carrier sense can be enabled with {@code setCarrierSense}: frames then wait for the channel
+ * to be idle, with a random backoff, before they are transmitted.
+ *
+ * A host can send and receive through several {@code FrameIO}s at once, such as several audio devices, added with
+ * {@code addLink}. Each link has a receive loop and a sender thread of its own. Whenever a link is free, its sender
+ * takes the host's next frame, so frames are striped across the links in proportion to their rates; a single
+ * waiting frame goes to the idle link with the highest measured rate. A link whose {@code FrameIO} keeps failing is
+ * taken out of service for a while, and the frames it failed to send are sent on the other links.
+ *
+ * The receive loops, send loops and timer wheel run as tasks on an {@code ExecutorService}, which may be shared
+ * between hosts, such as a virtual thread executor from {@code IOExecutors}. {@code close} stops them.
+ *
  * @author Oliver on 3/11/2018
  */
 public class ConnectionHost {
     final byte localHost;
-    private FrameIO frameIO;
-    private List<Connection> connections = new ArrayList<>();
-    private List<Ping> pings = new ArrayList<>();
-
-    // retransmission TimerTasks need to return if currently busy sending,
-    // otherwise risk buildup of frames.
-    private volatile boolean isSending = false;
+    // The links frames are sent and received through. The first is the FrameIO the host was created with.
+    private final List<Link> links = new CopyOnWriteArrayList<>();
+    private boolean isStarted = false;  // guarded by this
+    private final ConnectionIndex connections = new ConnectionIndex();
+    // Receivers of echo replies, such as pings and link monitors, by the port their echo requests are sent from.
+    private final Map<Byte, Consumer<Frame>> echoClients = new ConcurrentHashMap<>();
+    private final AtomicInteger nextEchoPort = new AtomicInteger();
+    // Multicast groups joined, besides the broadcast host, with the number of joins not yet left, and receivers of
+    // multicast frames by destination address.
+    private final Map<Byte, Integer> groups = new ConcurrentHashMap<>();
+    private final Map<Address, Consumer<Frame>> multicastClients = new ConcurrentHashMap<>();
+    private final ExecutorService executor;
+    private final boolean isExecutorOwned;
+    // The time the host runs on: its connections' timers and round trip times, and its links' rates.
+    final Clock clock;
+    // Serves the retransmission deadlines of every connection, so that they don't each need a timer thread.
+    final TimerWheel timerWheel;
+    private volatile TransmitScheduler scheduler = new DeficitRoundRobinScheduler();
+    private volatile FrameTrace trace;
+    // Strict priority class: frames built outside the sender threads, and connections with control frames to send.
+    // Responses are kept apart, since they may also be sent by a sender waiting for the channel.
+    private final ConcurrentLinkedQueue<Frame> responses = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Frame> controlFrames = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Connection> controlConnections = new ConcurrentLinkedQueue<>();
+    // Multicast frames, sent after the data frames of the connections.
+    private final ConcurrentLinkedQueue<Datagram> datagrams = new ConcurrentLinkedQueue<>();
+    // Frames that a failing link couldn't send, sent first on the next link to take a turn.
+    private final ConcurrentLinkedQueue<Datagram> failovers = new ConcurrentLinkedQueue<>();
 
-    private Thread receiver = new Thread(() -> {
-        while (true) {
-            receive();
-        }
-    });
-    private Thread sender = new Thread(() -> {
-        while (true) {
-            for (Connection connection : connections) {
-                connection.send();
-            }
-            try {
-                Thread.sleep(20);
-            } catch (InterruptedException e) {
-                return;
-            }
-        }
-    });
+    // Held by a sender while it chooses the next frame to send, which it collects in turn, and transmits once
+    // released. A lock rather than a monitor, so that a virtual thread waiting for it doesn't pin its carrier thread.
+    private final ReentrantLock turnLock = new ReentrantLock();
+    private final List<Datagram> turn = new ArrayList<>();
+    // Guarded by turnLock.
+    private Connection controlConnection;
+    private boolean isDataNext = true;
+    private final Metrics.Counter failoverFrames;
 
+    /**
+     * Creates a host that runs its loops on platform threads of its own.
+     */
     public ConnectionHost(byte localHost, FrameIO frameIO) {
+        this(localHost, frameIO, IOExecutors.newExecutor("host-" + (localHost & 0xFF), false), true, Clock.SYSTEM);
+    }
+
+    /**
+     * Creates a host that runs its loops on the given executor. The executor must run each task on its own thread,
+     * and is not shut down by {@code close}.
+     */
+    public ConnectionHost(byte localHost, FrameIO frameIO, ExecutorService executor) {
+        this(localHost, frameIO, executor, false, Clock.SYSTEM);
+    }
+
+    /**
+     * Creates a host that runs on the given clock, such as the virtual clock of a {@code FrameIOSim}, and its
+     * loops on the given executor, which is not shut down by {@code close}. The executor must run each task on
+     * its own thread.
+     */
+    public ConnectionHost(byte localHost, FrameIO frameIO, ExecutorService executor, Clock clock) {
+        this(localHost, frameIO, executor, false, clock);
+    }
+
+    private ConnectionHost(byte localHost, FrameIO frameIO, ExecutorService executor, boolean isExecutorOwned,
+                           Clock clock) {
         this.localHost = localHost;
-        this.frameIO = frameIO;
+        this.executor = executor;
+        this.isExecutorOwned = isExecutorOwned;
+        this.clock = clock;
+        this.timerWheel = new TimerWheel(executor, clock);
+        failoverFrames = Metrics.getDefault().counter("host." + (localHost & 0xFF) + ".failovers");
+        links.add(new Link(this, 0, frameIO));
+    }
+
+    /**
+     * Adds another link for the host to send and receive frames through. Frames are striped across all links.
+     * Any {@code FrameIO} can be a link, such as a {@code RealTimeFrameIO} on a second audio device, or a
+     * {@code FrameIOSim}.
+     *
+     * @param frameIO the link's FrameIO
+     * @return the link's number, for {@code setCarrierSense}. The FrameIO the host was created with is link 0.
+     */
+    public synchronized int addLink(FrameIO frameIO) {
+        Link link = new Link(this, links.size(), frameIO);
+        links.add(link);
+        if (isStarted) {
+            start(link);
+        }
+        return link.id;
     }
 
     public static void main(String[] args) throws InterruptedException {
@@ -122,119 +212,495 @@ public class ConnectionHost {
      * Blocks until the next frame is received.
      */
     public void receive() {
-        Frame inFrame = frameIO.decode();
-        if (inFrame.dest.host != localHost) {
+        receive(links.get(0));
+    }
+
+    /**
+     * Receives the next frame from the given link. Called from the link's receive loop.
+     */
+    private void receive(Link link) {
+        Frame inFrame = link.receive();
+        if (inFrame == null || !isListening(inFrame.dest.host)) {
+            return;
+        }
+        if (inFrame.isCorrupt && !(inFrame.protocol == Frame.PROTOCOL_PING && inFrame.ack)) {
+            // Only echo replies are passed on with a corrupt payload, to measure the bit error rate.
             return;
         }
         if (inFrame.protocol == Frame.PROTOCOL_CONNECTION) {
+            if (inFrame.dest.host != localHost) {
+                return;
+            }
+            Connection owner = connections.get(inFrame.dest, inFrame.source);
             // check for connection requests
-            if (inFrame.syn && !inFrame.ack &&
-                    !connections.contains(new Connection(this, inFrame.dest.port, inFrame.source))) {
-                connections.add(new Connection(this, inFrame.dest.port, inFrame.source));
-            } else if (inFrame.fin) {
-                // TODO: Fix logic for fin.
-                Connection finConnection = null;
-                for (Connection connection : connections) {
-                    if (connection.source.equals(inFrame.dest) &&
-                            connection.dest.equals(inFrame.source)) {
-                        connection.receive(inFrame);
-                        finConnection = connection;
-                    }
-                }
-                if (finConnection != null) {
-                    connections.remove(finConnection);
-                } else {
-                    // ConnectionHost must acknowledge fin on behalf of connection because the
-                    // connection has terminated by now.
-                    Frame finAck = new Frame(inFrame.dest, inFrame.source, inFrame.seq,
-                            false, true, true, false, false, Frame.PROTOCOL_CONNECTION);
-                    send(finAck);
+            if (owner == null && inFrame.syn && !inFrame.ack) {
+                owner = new Connection(this, inFrame.dest.port, inFrame.source);
+                if (!connections.add(owner)) {
+                    // Another link received the same request first.
+                    owner = connections.get(inFrame.dest, inFrame.source);
                 }
             }
-            // redirect remaining incoming frames to their respective live connections
-            else {
-                for (Connection connection : connections) {
-                    if (connection.source.equals(inFrame.dest) &&
-                            connection.dest.equals(inFrame.source)) {
-                        connection.receive(inFrame);
-                    }
+            if (owner != null) {
+                owner.receive(inFrame);
+                if (owner.isClosed()) {
+                    connections.remove(owner);
                 }
+            } else if (inFrame.fin) {
+                // ConnectionHost must acknowledge fin on behalf of connection because the
+                // connection has terminated by now.
+                Frame finAck = new Frame(inFrame.dest, inFrame.source, (short) 0,
+                        false, true, false, false, false, Frame.PROTOCOL_CONNECTION);
+                finAck.ackSeq = (short) (inFrame.seq + 1);
+                queueControlFrame(finAck);
             }
         } else if (inFrame.protocol == Frame.PROTOCOL_PING) {
             if (!inFrame.ack) {
-                // send an echo reply
-                Frame echoReply = new Frame(inFrame.dest, inFrame.source, inFrame.seq,
+                // send an echo reply, from this host if the request was broadcast or multicast
+                Address replySource = new Address(localHost, inFrame.dest.port);
+                Frame echoReply = new Frame(replySource, inFrame.source, inFrame.seq,
                         false, true, false,false, false, Frame.PROTOCOL_PING, inFrame.payload);
-                send(echoReply);
+                queueControlFrame(echoReply);
             } else {
-                for (Ping ping : pings) {
-                    if (ping.targetHost == inFrame.source.host) {
-                        ping.receive(inFrame);
-                    }
+                Consumer<Frame> echoClient = echoClients.get(inFrame.dest.port);
+                if (echoClient != null) {
+                    echoClient.accept(inFrame);
                 }
             }
+        } else if (inFrame.protocol == Frame.PROTOCOL_MULTICAST) {
+            Consumer<Frame> multicastClient = multicastClients.get(inFrame.dest);
+            if (multicastClient != null) {
+                multicastClient.accept(inFrame);
+            }
+        }
+    }
+
+    /**
+     * @return {@code true} if frames addressed to the given host are received by this host
+     */
+    private boolean isListening(byte host) {
+        return host == localHost || host == Address.BROADCAST_HOST || groups.containsKey(host);
+    }
+
+    /**
+     * Starts receiving frames addressed to the given multicast group. Joins are counted, so that several channels,
+     * on different ports of the same group, can each join and leave it.
+     *
+     * @param group a host from {@code Address.FIRST_GROUP_HOST} to {@code Address.LAST_GROUP_HOST}
+     * @throws IllegalArgumentException if {@code group} is not a multicast group
+     */
+    public void joinGroup(byte group) {
+        if (!Address.isGroupHost(group)) {
+            throw new IllegalArgumentException("Not a multicast group: " + (group & 0xFF));
+        }
+        groups.merge(group, 1, Integer::sum);
+    }
+
+    /**
+     * Undoes a {@code joinGroup}. Frames addressed to the group stop being received once every join has been left.
+     */
+    public void leaveGroup(byte group) {
+        groups.computeIfPresent(group, (g, joins) -> joins == 1 ? null : joins - 1);
+    }
+
+    /**
+     * Passes {@code PROTOCOL_MULTICAST} frames addressed to the given address to {@code multicastClient},
+     * on the receiver thread. The host must also listen to the address's host, with {@code joinGroup}.
+     *
+     * @throws IllegalStateException if another client is receiving on the address
+     */
+    void addMulticastClient(Address address, Consumer<Frame> multicastClient) {
+        if (multicastClients.putIfAbsent(address, multicastClient) != null) {
+            throw new IllegalStateException("Address in use: " + address);
+        }
+    }
+
+    void removeMulticastClient(Address address) {
+        multicastClients.remove(address);
+    }
+
+    /**
+     * Queues the given frame to be sent by a sender thread, after the data frames of the connections.
+     * The frame's source address is not validated.
+     *
+     * @param frame  the frame to send
+     * @param onSent run on the sender thread once the frame has been transmitted, or {@code null}
+     */
+    void queueDatagram(Frame frame, Runnable onSent) {
+        datagrams.add(new Datagram(frame, onSent, true));
+        wakeSender();
+    }
+
+    /**
+     * Sends the first queued datagram. Only called during a turn.
+     *
+     * @return {@code true} if a frame was sent
+     */
+    private boolean sendDatagram() {
+        Datagram datagram = datagrams.poll();
+        if (datagram == null) {
+            return false;
         }
+        turn.add(datagram);
+        return true;
     }
 
     /**
      * Sends the given frame to the lower-level {@code FrameIO} for encoding.
      * Used by child connections to send frames.
-     * Blocks until the entire frame has been written.
+     * Called during a sender's turn, the frame is sent on the sender's link once the turn is over. Otherwise, blocks
+     * until the entire frame has been written to the first link, after waiting for an idle channel if carrier sense
+     * is enabled.
      *
-     * If the frame is a {@code PROTOCOL_CONNECTION} it's source address must be that of an active connection.
-     * If the frame is a {@code PROTOCOL_PING} it's source address host must be equal to {@code localHost}.
+     * If the frame is a {@code PROTOCOL_CONNECTION} it's source and destination addresses must be those of an active connection.
+     * If the frame is a {@code PROTOCOL_PING} or {@code PROTOCOL_MULTICAST} it's source address host must be equal
+     * to {@code localHost}.
      *
      * @param frame the frame to send
      * @throws IllegalArgumentException if the frame's source address is invalid.
      */
-    public synchronized void send(Frame frame) throws IllegalArgumentException {
+    public void send(Frame frame) throws IllegalArgumentException {
         if (frame.protocol == Frame.PROTOCOL_CONNECTION) {
-            List<Address> activeAddresses = new LinkedList<>();
-            for (Connection connection : connections) {
-                activeAddresses.add(connection.source);
-            }
-            if (!activeAddresses.contains(frame.source)) {
+            if (connections.get(frame.source, frame.dest) == null) {
                 throw new IllegalArgumentException("Source address of PROTOCOL_CONNECTION frame is not from an active connection");
             }
-        } else if (frame.protocol == Frame.PROTOCOL_PING && frame.source.host != localHost) {
-            throw new IllegalArgumentException("Source address host of PROTOCOL_PING frame is not equal to localHost");
+        } else if (frame.protocol != Frame.PROTOCOL_CONNECTION && frame.source.host != localHost) {
+            throw new IllegalArgumentException("Source address host of PROTOCOL_PING or PROTOCOL_MULTICAST frame "
+                    + "is not equal to localHost");
+        }
+        if (turnLock.isHeldByCurrentThread()) {
+            turn.add(new Datagram(frame, null, true));
+        } else {
+            Link link = links.get(0);
+            link.contendAndTransmit(frame, () -> sendResponses(link));
+        }
+    }
+
+    /**
+     * Queues the given frame in the control class, to be sent by a sender thread ahead of any data frames.
+     * The frame's source address is not validated.
+     *
+     * @param frame the frame to send
+     */
+    void queueControlFrame(Frame frame) {
+        (isResponse(frame) ? responses : controlFrames).add(frame);
+        wakeSender();
+    }
+
+    /**
+     * Queues the given connection to have {@code sendControl} called by a sender thread ahead of any data frames.
+     */
+    void scheduleControl(Connection connection) {
+        controlConnections.add(connection);
+        wakeSender();
+    }
+
+    /**
+     * Sends the next frame in the control class. Only called during a turn.
+     *
+     * @return {@code true} if a frame was sent
+     */
+    private boolean sendControlFrame() {
+        Frame frame;
+        if ((frame = responses.poll()) != null) {
+            turn.add(new Datagram(frame, null, false));
+            return true;
+        }
+        if ((frame = controlFrames.poll()) != null) {
+            turn.add(new Datagram(frame, null, true));
+            return true;
+        }
+        // A connection keeps the turn until it has no control frames left.
+        while (controlConnection != null || (controlConnection = controlConnections.poll()) != null) {
+            if (controlConnection.sendControl() > 0) {
+                return true;
+            }
+            controlConnection = null;
+        }
+        return false;
+    }
+
+    /**
+     * Starts recording the frames sent, received and ignored by this host's connections to the given trace.
+     *
+     * @param trace the trace, or {@code null} to stop tracing
+     */
+    public void setTrace(FrameTrace trace) {
+        this.trace = trace;
+    }
+
+    /**
+     * Records an event to the trace, if tracing is enabled.
+     */
+    void trace(byte event, Frame frame) {
+        FrameTrace trace = this.trace;
+        if (trace != null) {
+            trace.record(event, frame);
+        }
+    }
+
+    /**
+     * Sets the scheduler that chooses which connection each data frame is sent from.
+     *
+     * @param scheduler the scheduler, such as a {@code DeficitRoundRobinScheduler}
+     */
+    public void setScheduler(TransmitScheduler scheduler) {
+        this.scheduler = scheduler;
+        wakeSender();
+    }
+
+    /**
+     * Sends the given frame on the given link, first waiting for an idle channel if it contends and carrier sense
+     * is enabled. Responses queued in the control class meanwhile are sent without waiting.
+     * If the link fails to send the frame, it is sent on the next link to take a turn.
+     */
+    private void transmit(Link link, Datagram datagram) {
+        boolean isSent = datagram.isContended
+                ? link.contendAndTransmit(datagram.frame, () -> sendResponses(link))
+                : link.transmit(datagram.frame);
+        if (!isSent) {
+            failoverFrames.increment();
+            failovers.add(datagram);
+            wakeSender();
+        } else if (datagram.onSent != null) {
+            datagram.onSent.run();
         }
-        isSending = true;
-        RealTimeAudioIO.getInstance().startOutput();
-        frameIO.encode(frame);
-        RealTimeAudioIO.getInstance().stopOutput();
-        isSending = false;
+    }
+
+    /**
+     * Sends the queued responses on the given link. Called by a sender waiting for the channel.
+     */
+    private void sendResponses(Link link) {
+        Frame frame;
+        while ((frame = responses.poll()) != null) {
+            transmit(link, new Datagram(frame, null, false));
+        }
+    }
+
+    /**
+     * @return {@code true} for frames in the control class that answer a frame this host has just received:
+     * ACKs and echo replies
+     */
+    private static boolean isResponse(Frame frame) {
+        return frame.ack;
+    }
+
+    /**
+     * Enables carrier sense multiple access with collision avoidance on the first link. Before each frame is
+     * transmitted, the host waits for the channel to be idle according to {@code backoff}.
+     * Frames sent in response to a received frame (immediate ACKs and echo replies) are transmitted straight away,
+     * even while a data frame is waiting for the channel, like 802.11 ACKs after a SIFS: the channel was just
+     * released to this host. Delayed ACKs contend like data frames.
+     *
+     * @param carrierSense the channel to sense, such as an {@code EnergyDetectingAudioIO} on the decoder's input,
+     *                     or {@code null} to transmit without sensing the channel
+     * @param backoff      the backoff policy
+     */
+    public void setCarrierSense(CarrierSense carrierSense, CarrierSenseBackoff backoff) {
+        setCarrierSense(0, carrierSense, backoff);
+    }
+
+    /**
+     * Like {@code setCarrierSense(CarrierSense, CarrierSenseBackoff)}, for the given link.
+     *
+     * @param link the link's number, as returned by {@code addLink}
+     */
+    public void setCarrierSense(int link, CarrierSense carrierSense, CarrierSenseBackoff backoff) {
+        links.get(link).setCarrierSense(carrierSense, backoff);
     }
 
     public boolean ping(byte targetHost, int nFrames, long frameDelay, long timeout) {
         Ping ping = new Ping(targetHost);
-        pings.add(ping);
         return (ping.sendEchoRequests(nFrames, frameDelay, timeout));
     }
 
+    /**
+     * Reserves a port for sending echo requests from. Echo replies to the port are passed to {@code echoClient}
+     * on the receiver thread, including replies whose payload was corrupted ({@code Frame.isCorrupt}).
+     *
+     * @param echoClient receives the echo replies
+     * @return the port
+     * @throws IllegalStateException if every port is in use
+     */
+    byte addEchoClient(Consumer<Frame> echoClient) {
+        for (int i = 0; i < 256; i++) {
+            byte port = (byte) nextEchoPort.getAndIncrement();
+            if (echoClients.putIfAbsent(port, echoClient) == null) {
+                return port;
+            }
+        }
+        throw new IllegalStateException("Every echo port is in use");
+    }
+
+    void removeEchoClient(byte port) {
+        echoClients.remove(port);
+    }
+
+    /**
+     * Signals a sender thread that a connection may have a frame ready to send: the sender of the idle link with
+     * the highest measured rate. If no link is idle, a busy sender takes the frame once its link is free.
+     * Cheap, and safe to call from any thread, including while holding a connection's lock.
+     */
+    void wakeSender() {
+        if (links.size() == 1) {
+            clock.unpark(links.get(0).sender);
+            return;
+        }
+        Link fastest = null;
+        for (Link link : links) {
+            if (link.isIdle && link.isUp() && (fastest == null || link.getRate() > fastest.getRate())) {
+                fastest = link;
+            }
+        }
+        if (fastest != null) {
+            clock.unpark(fastest.sender);
+        }
+    }
+
+    /**
+     * @return {@code true} while any link is encoding a frame
+     */
     public boolean isSending() {
-        return isSending;
+        for (Link link : links) {
+            if (link.isSending()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Starts the receive and send loops of every link on the host's executor.
+     */
+    public synchronized void startParallelIO() {
+        isStarted = true;
+        for (Link link : links) {
+            start(link);
+        }
+    }
+
+    private void start(Link link) {
+        link.receiverTask = executor.submit(() -> {
+            clock.register();
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    try {
+                        link.awaitUp();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    receive(link);
+                }
+            } finally {
+                clock.unregister();
+            }
+        });
+        link.senderTask = executor.submit(() -> {
+            clock.register();
+            try {
+                runSender(link);
+            } finally {
+                clock.unregister();
+            }
+        });
+    }
+
+    /**
+     * Takes turns at choosing a frame to send, and sends it on the given link, while there is anything to send,
+     * and otherwise parks until woken by wakeSender. The link is marked idle before the last look for frames,
+     * so a wake-up that arrives in between makes the next park return at once. While the link is down, it
+     * sends nothing.
+     */
+    private void runSender(Link link) {
+        link.sender = Thread.currentThread();
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                link.awaitUp();
+            } catch (InterruptedException e) {
+                return;
+            }
+            List<Datagram> frames = takeTurn();
+            if (frames.isEmpty()) {
+                link.isIdle = true;
+                frames = takeTurn();
+                if (frames.isEmpty()) {
+                    clock.park();
+                }
+                link.isIdle = false;
+            } else if (links.size() > 1) {
+                // There may be more frames than this link can take, so let another idle link look.
+                wakeSender();
+            }
+            for (Datagram datagram : frames) {
+                transmit(link, datagram);
+            }
+        }
+    }
+
+    /**
+     * Chooses the frame to send next: a frame that a failing link couldn't send, or else a waiting control frame,
+     * or else, in alternate turns, a data frame chosen by the scheduler or a datagram.
+     * The frame is built by its connection when it is chosen, and sent as soon as the turn is over, so that its
+     * retransmission timer starts when it is sent.
+     *
+     * @return the frames sent during the turn, in the order to send them: usually one, or none
+     */
+    private List<Datagram> takeTurn() {
+        turnLock.lock();
+        try {
+            Datagram failover = failovers.poll();
+            if (failover != null) {
+                return Collections.singletonList(failover);
+            }
+            if (!sendControlFrame()) {
+                for (int i = 0; i < 2; i++) {
+                    boolean isDataTurn = isDataNext;
+                    isDataNext = !isDataNext;
+                    if (isDataTurn ? scheduler.sendNext(connections.connections()) : sendDatagram()) {
+                        break;
+                    }
+                }
+            }
+            if (turn.isEmpty()) {
+                return Collections.emptyList();
+            }
+            List<Datagram> frames = new ArrayList<>(turn);
+            turn.clear();
+            return frames;
+        } finally {
+            turnLock.unlock();
+        }
     }
 
     /**
-     * Starts 2 new Threads to run the send and receive code each in a while loop.
+     * Stops the receive and send loops and the timer wheel, and shuts down the executor if the host created it.
+     * A frame being decoded is abandoned; one being encoded is finished first. Connections are left as they are.
      */
-    public void startParallelIO() {
-        receiver.start();
-        sender.start();
+    public synchronized void close() {
+        for (Link link : links) {
+            if (link.receiverTask != null) {
+                link.receiverTask.cancel(true);
+                link.senderTask.cancel(true);
+            }
+        }
+        timerWheel.stop();
+        if (isExecutorOwned) {
+            executor.shutdownNow();
+        }
     }
 
     /**
-     * Adds the given connection to the list of connections the host will serve.
+     * Adds the given connection to the connections the host will serve, unless the host already serves
+     * a connection between the same addresses.
      * This is the only way for a connection to send/receive frames.
      * @param connection the connection to addConnection
      */
     public void addConnection(Connection connection) {
         connections.add(connection);
+        wakeSender();
     }
 
     /**
-     * Remove the given connection from the list of connections the host will serve.
+     * Remove the given connection from the connections the host will serve.
      * The given connection will no longer be able to send and receive frames.
      * @param connection the connection to removeConnection
      */
@@ -242,9 +708,25 @@ public class ConnectionHost {
         connections.remove(connection);
     }
 
+    private static class Datagram {
+        final Frame frame;
+        final Runnable onSent;
+        // false for responses, which are sent without waiting for the channel
+        final boolean isContended;
+
+        Datagram(Frame frame, Runnable onSent, boolean isContended) {
+            this.frame = frame;
+            this.onSent = onSent;
+            this.isContended = isContended;
+        }
+    }
+
     class Ping {
-        byte targetHost;
-        int repliesReceived;
+        final byte targetHost;
+        private final AtomicInteger repliesReceived = new AtomicInteger();
+        // Send times of the echo requests by seq, so that each reply is matched to its own request once.
+        private long[] sentAt;
+        private boolean[] isReplied;
 
         public Ping(byte targetHost) {
             this.targetHost = targetHost;
@@ -258,47 +740,70 @@ public class ConnectionHost {
          * Pass: at least one 'echo-reply' was received within {@code timeout} milliseconds since the last
          * frame was sent.
          *
-         * Also prints statistics about the round trip time and percent loss.
+         * Requests are sent from a port of their own, so replies to concurrent pings of the same host
+         * are told apart. Also prints statistics about the round trip time and percent loss.
          *
          * @return {@code true} if the ping passed. {@code false} otherwise.
          */
         public boolean sendEchoRequests(int nFrames, long frameDelay, long timeout) {
             System.out.printf("PING target host: %d, sending %d data bytes in %d frames\n", targetHost, 8 * nFrames, nFrames);
+            nFrames = Math.min(nFrames, 1 << 16);
+            synchronized (this) {
+                sentAt = new long[nFrames];
+                Arrays.fill(sentAt, Long.MIN_VALUE);
+                isReplied = new boolean[nFrames];
+            }
+            byte port = addEchoClient(this::receive);
             try {
-                for (byte seq = 0; seq < nFrames; seq++) {
-                    // sending timestamp allows stateless computation of round trip time
+                for (int seq = 0; seq < nFrames; seq++) {
+                    synchronized (this) {
+                        sentAt[seq] = clock.nanoTime();
+                    }
                     byte[] time = ByteBuffer.allocate(8).putLong(System.currentTimeMillis()).array();
-                    Frame echoRequest = new Frame(new Address(localHost, 0), new Address(targetHost, 0),
-                            seq, false, false, false, false, false, Frame.PROTOCOL_PING, time);
-                    send(echoRequest);
-                    Thread.sleep(frameDelay);
+                    Frame echoRequest = new Frame(new Address(localHost, port), new Address(targetHost, 0),
+                            (short) seq, false, false, false, false, false, Frame.PROTOCOL_PING, time);
+                    queueControlFrame(echoRequest);
+                    clock.sleep(TimeUnit.MILLISECONDS.toNanos(frameDelay));
                 }
 
-                Thread.sleep(timeout);
-                double percentageLoss = 100.0 * (nFrames - repliesReceived) / nFrames;
+                clock.sleep(TimeUnit.MILLISECONDS.toNanos(timeout));
+                int replies = repliesReceived.get();
+                double percentageLoss = 100.0 * (nFrames - replies) / nFrames;
                 System.out.printf("--- target host: %d PING statistics ---\n", targetHost);
                 System.out.printf("%d frames sent, %d frames received, %.2f%% frame loss\n",
-                        nFrames, repliesReceived, percentageLoss);
-                pings.remove(this);
-                System.out.println(repliesReceived > 0 ? "PING passed" : "PING failed");
+                        nFrames, replies, percentageLoss);
+                System.out.println(replies > 0 ? "PING passed" : "PING failed");
                 System.out.println();
-                return repliesReceived > 0;
+                return replies > 0;
             } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
                 return false;
+            } finally {
+                removeEchoClient(port);
             }
         }
 
         /**
-         * Receives the given 'echo-reply' from the connectionHost, and saves it to the internal buffer.
+         * Receives the given 'echo-reply' from the connectionHost. Replies that are corrupt, duplicated, or
+         * don't match a request are ignored.
          * This method should only be called from the connectionHost.
          *
          * @param echoReply the frame received from the connectionHost.
          */
         public void receive(Frame echoReply) {
-            repliesReceived++;
-            long roundTripTime = System.currentTimeMillis() - ByteBuffer.wrap(echoReply.payload).getLong();
-            System.out.printf("received %d bytes PING from host %d seq=%d time=%dms\n",
-                    echoReply.payload.length, echoReply.source.host, echoReply.seq, roundTripTime);
+            long now = clock.nanoTime();
+            int seq = echoReply.seq & 0xFFFF;
+            long roundTripTime;
+            synchronized (this) {
+                if (echoReply.isCorrupt || seq >= sentAt.length || sentAt[seq] == Long.MIN_VALUE || isReplied[seq]) {
+                    return;
+                }
+                isReplied[seq] = true;
+                roundTripTime = now - sentAt[seq];
+            }
+            repliesReceived.incrementAndGet();
+            System.out.printf("received %d bytes PING from host %d seq=%d time=%.3fms\n",
+                    echoReply.payloadLength(), echoReply.source.host, seq, roundTripTime / 1e6);
         }
     }
 }
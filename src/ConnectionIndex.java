@@ -0,0 +1,121 @@
+/**
+ * Concurrent index of a host's connections, keyed by their local and remote addresses packed into an int.
+ * <p>
+ * Lookups are lock-free and take constant time: the index is an open-addressing hash table with linear probing,
+ * published through a volatile reference. Adding or removing a connection copies the table under a lock,
+ * which is cheap because connections come and go far less often than frames.
+ */
+class ConnectionIndex {
+    private static final int MIN_CAPACITY = 16;
+
+    private volatile Table table = new Table(MIN_CAPACITY, new Connection[0]);
+
+    /**
+     * Packs a pair of addresses into a key: local host, local port, remote host and remote port, one byte each.
+     */
+    static int key(Address local, Address remote) {
+        return (local.pack() << 16) | remote.pack();
+    }
+
+    /**
+     * @return the connection with the given key, or {@code null} if there is none
+     */
+    Connection get(int key) {
+        Table table = this.table;
+        int mask = table.keys.length - 1;
+        for (int i = Table.hash(key) & mask; ; i = (i + 1) & mask) {
+            Connection connection = table.values[i];
+            if (connection == null || table.keys[i] == key) {
+                return connection;
+            }
+        }
+    }
+
+    /**
+     * @return the connection from {@code local} to {@code remote}, or {@code null} if there is none
+     */
+    Connection get(Address local, Address remote) {
+        return get(key(local, remote));
+    }
+
+    /**
+     * Adds the given connection, unless a connection between the same addresses is already indexed.
+     *
+     * @return {@code true} if the connection was added
+     */
+    synchronized boolean add(Connection connection) {
+        if (get(connection.hashCode()) != null) {
+            return false;
+        }
+        Connection[] connections = table.connections;
+        Connection[] updated = new Connection[connections.length + 1];
+        System.arraycopy(connections, 0, updated, 0, connections.length);
+        updated[connections.length] = connection;
+        table = new Table(capacityFor(updated.length), updated);
+        return true;
+    }
+
+    /**
+     * Removes the given connection, if it is indexed.
+     *
+     * @return {@code true} if the connection was removed
+     */
+    synchronized boolean remove(Connection connection) {
+        Connection[] connections = table.connections;
+        for (int i = 0; i < connections.length; i++) {
+            if (connections[i] == connection) {
+                Connection[] updated = new Connection[connections.length - 1];
+                System.arraycopy(connections, 0, updated, 0, i);
+                System.arraycopy(connections, i + 1, updated, i, updated.length - i);
+                table = new Table(capacityFor(updated.length), updated);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return a snapshot of the indexed connections. Must not be modified.
+     */
+    Connection[] connections() {
+        return table.connections;
+    }
+
+    private static int capacityFor(int size) {
+        // Keep the load factor at or below 1/2, so probe sequences stay short.
+        return Math.max(MIN_CAPACITY, Integer.highestOneBit(size * 2 - 1) << 1);
+    }
+
+    /**
+     * Immutable once published.
+     */
+    private static class Table {
+        final int[] keys;
+        final Connection[] values;
+        final Connection[] connections;
+
+        Table(int capacity, Connection[] connections) {
+            keys = new int[capacity];
+            values = new Connection[capacity];
+            this.connections = connections;
+            int mask = capacity - 1;
+            for (Connection connection : connections) {
+                int key = connection.hashCode();
+                int i = hash(key) & mask;
+                while (values[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = key;
+                values[i] = connection;
+            }
+        }
+
+        /**
+         * Spreads the address bytes over the low bits used as the table index.
+         */
+        static int hash(int key) {
+            int h = key * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+    }
+}
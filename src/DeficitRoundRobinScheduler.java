@@ -0,0 +1,83 @@
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Deficit round robin across connections (Shreedhar and Varghese). On each of its turns a connection is given
+ * a quantum of {@code quantum * share} bytes, and sends frames until it has used them up or has nothing left
+ * to send. Over time each busy connection gets a share of the link proportional to its configured share,
+ * whatever the size of its frames, and a connection with a large backlog cannot hold up the others for longer
+ * than its quantum.
+ * <p>
+ * A frame is sent whenever the connection has credit left, and its size is taken off afterwards, so the credit
+ * may go negative by up to a frame. The overdraft is paid back from the connection's next quantum.
+ * A connection with nothing to send loses its credit, so that idle connections don't bank up bursts.
+ */
+public class DeficitRoundRobinScheduler implements TransmitScheduler {
+    static final int DEFAULT_QUANTUM = 512;  // bytes
+
+    private final int quantum;
+    private final Map<Connection, Integer> deficits = new HashMap<>();
+    private Connection[] connections = new Connection[0];
+    private int current = 0;
+    private boolean isQuantumGiven = false;
+
+    public DeficitRoundRobinScheduler(int quantum) {
+        if (quantum < 1) {
+            throw new IllegalArgumentException("Quantum must be positive");
+        }
+        this.quantum = quantum;
+    }
+
+    public DeficitRoundRobinScheduler() {
+        this(DEFAULT_QUANTUM);
+    }
+
+    @Override
+    public boolean sendNext(Connection[] connections) {
+        if (connections != this.connections) {
+            retain(connections);
+        }
+        // Give up once every connection has been asked, and had nothing to send.
+        int idle = 0;
+        while (idle < connections.length) {
+            if (current >= connections.length) {
+                current = 0;
+            }
+            Connection connection = connections[current];
+            int deficit = deficits.getOrDefault(connection, 0);
+            if (!isQuantumGiven) {
+                deficit += quantum * connection.getShare();
+                isQuantumGiven = true;
+            }
+            if (deficit > 0) {
+                int sent = connection.send();
+                if (sent > 0) {
+                    deficits.put(connection, deficit - sent);
+                    return true;
+                }
+                deficit = 0;
+                idle++;
+            }
+            deficits.put(connection, deficit);
+            current++;
+            isQuantumGiven = false;
+        }
+        return false;
+    }
+
+    /**
+     * Forgets the deficits of connections that the host no longer serves.
+     */
+    private void retain(Connection[] connections) {
+        Map<Connection, Integer> retained = new HashMap<>();
+        for (Connection connection : connections) {
+            Integer deficit = deficits.get(connection);
+            if (deficit != null) {
+                retained.put(connection, deficit);
+            }
+        }
+        deficits.clear();
+        deficits.putAll(retained);
+        this.connections = connections;
+    }
+}
@@ -0,0 +1,271 @@
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * {@code AudioIO} decorator that removes this host's own transmission from the samples read through it, so that
+ * frames from other hosts can be decoded while this host is transmitting.
+ * <p>
+ * Every sample written through the decorator is kept as the reference signal. The microphone hears it {@code delay}
+ * samples later (the latency of the output and input lines), filtered by the speaker, the room and the microphone.
+ * That echo path is modelled by an adaptive FIR filter of {@code taps} coefficients, which is applied to the
+ * reference and subtracted from each sample read. The coefficients are adapted after every sample by normalized
+ * least mean squares (NLMS), so the filter tracks the echo path as it changes, without knowing the gain of the
+ * hardware.
+ * <p>
+ * Adaptation is frozen while another host is heard at the same time (double talk), detected by the Geigel test:
+ * when a sample read is louder than {@code doubleTalkRatio} times the loudest reference sample in the filter,
+ * it can't be echo alone. Adapting on another host's signal would make the filter diverge.
+ * <p>
+ * The reference is lined up with the samples read by counting samples, which only works while the output runs
+ * continuously. So while nothing else is written, reading writes silence, keeping {@code OUTPUT_LEAD} samples
+ * queued ahead of the sample being read. The output line must be left running: both lines run from the same sample
+ * clock, so every sample written is then heard {@code delay} samples after the samples queued ahead of it have
+ * played. If the output does underrun, because the reading falls behind, the next sample written is taken to be
+ * heard {@code delay} samples after the sample being read.
+ * <p>
+ * {@code delay} depends on the hardware and its drivers, and has no useful default: with {@code RealTimeAudioIO}'s
+ * 4096-sample line buffers, the echo arrives thousands of samples after it is written, far beyond a filter of the
+ * usual length at a delay of 0. To measure it, use a filter long enough to cover both line buffers, such as
+ * {@code MEASURING_TAPS} taps at a delay of 0, while this host transmits alone for a few seconds, and read
+ * {@code getEchoPathPeak}. Then use a delay some way short of the peak, such as a quarter of the filter length
+ * short, so that the filter also covers the echo's onset.
+ * <p>
+ * Put this decorator directly on the audio hardware, under any {@code EnergyDetectingAudioIO}, so that carrier
+ * sense doesn't hear this host's own transmission either.
+ */
+public class EchoCancellingAudioIO implements AudioIO {
+    static final int DEFAULT_TAPS = 64;
+    // Enough taps to find the echo at a delay of 0 behind two 4096-sample line buffers, for measuring the delay.
+    static final int MEASURING_TAPS = 8192;
+    static final double DEFAULT_STEP_SIZE = 0.5;
+    static final double DEFAULT_DOUBLE_TALK_RATIO = 0.5;
+    // Keeps the NLMS step bounded while only a few reference samples are in the filter, as if each tap held
+    // at least this much power.
+    private static final double REGULARIZATION = 16;
+    // Samples for which adaptation stays frozen after double talk was last detected.
+    private static final int DOUBLE_TALK_HANGOVER = 256;
+    // Reference samples that can be written ahead of the sample being read.
+    private static final int REFERENCE_SIZE = 1 << 15;
+    // Samples of output kept queued by writing silence, so that the output doesn't underrun between reads.
+    static final int OUTPUT_LEAD = 1024;
+    private static final byte[] SILENCE = new byte[OUTPUT_LEAD];
+    // Window of the moving averages of the echo and residual power.
+    private static final double POWER_ALPHA = 1.0 / 1024;
+
+    private final AudioIO audioIO;
+    private final int delay;
+    private final double stepSize;
+    private final double doubleTalkRatio;
+
+    // Held while writing to the output, so that silence is only written between the writer's samples.
+    private final ReentrantLock outputLock = new ReentrantLock();
+
+    // Reference samples by the index of the sample read they are heard in. Slots are cleared once read.
+    // Guarded by itself.
+    private final byte[] reference = new byte[REFERENCE_SIZE];
+    private long writeIndex = 0;
+    private long readIndex = 0;
+
+    // Filter state. Only accessed by the reading thread. history[(head + k) % taps] is the reference k samples ago.
+    private final double[] weights;
+    private final double[] history;
+    private int head = 0;
+    private long historyPower = 0;
+    private int doubleTalkHangover = 0;
+    private double echoPower = 0;
+    private double residualPower = 0;
+
+    private final Metrics.Counter referenceOverruns;
+    private final Metrics.Counter doubleTalkSamples;
+
+    /**
+     * @param audioIO the audio stream to read from and write to
+     * @param delay   samples from a sample leaving the output queue until it is read back, not counting the echo
+     *                path modelled by the filter, as measured with {@code getEchoPathPeak}
+     */
+    public EchoCancellingAudioIO(AudioIO audioIO, int delay) {
+        this(audioIO, delay, DEFAULT_TAPS, DEFAULT_STEP_SIZE, DEFAULT_DOUBLE_TALK_RATIO);
+    }
+
+    /**
+     * @param audioIO         the audio stream to read from and write to
+     * @param delay           samples from a sample leaving the output queue until it is read back, not counting
+     *                        the echo path modelled by the filter
+     * @param taps            the length of the echo path modelled, in samples
+     * @param stepSize        the NLMS step size, between 0 and 2. Larger adapts faster but cancels less.
+     * @param doubleTalkRatio a sample read louder than this many times the loudest reference sample in the filter
+     *                        is taken as another host talking
+     */
+    public EchoCancellingAudioIO(AudioIO audioIO, int delay, int taps, double stepSize, double doubleTalkRatio) {
+        if (delay < 0 || delay + OUTPUT_LEAD >= REFERENCE_SIZE / 2) {
+            throw new IllegalArgumentException("Delay must be from 0 to " + (REFERENCE_SIZE / 2 - OUTPUT_LEAD - 1));
+        }
+        if (taps < 1) {
+            throw new IllegalArgumentException("Need at least 1 tap");
+        }
+        if (stepSize <= 0 || stepSize >= 2) {
+            throw new IllegalArgumentException("Step size must be between 0 and 2");
+        }
+        this.audioIO = audioIO;
+        this.delay = delay;
+        this.stepSize = stepSize;
+        this.doubleTalkRatio = doubleTalkRatio;
+        weights = new double[taps];
+        history = new double[taps];
+
+        Metrics metrics = Metrics.getDefault();
+        String prefix = metrics.instanceName("echo") + ".";
+        referenceOverruns = metrics.counter(prefix + "referenceOverruns");
+        doubleTalkSamples = metrics.counter(prefix + "doubleTalkSamples");
+    }
+
+    @Override
+    public byte readSample() {
+        keepOutputRunning();
+        byte sample = audioIO.readSample();
+        byte referenceSample;
+        synchronized (reference) {
+            int slot = (int) (readIndex & (REFERENCE_SIZE - 1));
+            referenceSample = reference[slot];
+            reference[slot] = 0;
+            readIndex++;
+        }
+        return cancel(sample, referenceSample);
+    }
+
+    @Override
+    public byte[] readSamples(int n) {
+        byte[] samples = new byte[n];
+        for (int i = 0; i < n; i++) {
+            samples[i] = readSample();
+        }
+        return samples;
+    }
+
+    @Override
+    public void writeSample(byte sample) {
+        outputLock.lock();
+        try {
+            addReference(new byte[]{sample}, 1);
+            audioIO.writeSample(sample);
+        } finally {
+            outputLock.unlock();
+        }
+    }
+
+    @Override
+    public void writeSamples(byte[] samples) {
+        outputLock.lock();
+        try {
+            addReference(samples, samples.length);
+            audioIO.writeSamples(samples);
+        } finally {
+            outputLock.unlock();
+        }
+    }
+
+    /**
+     * Writes silence until {@code OUTPUT_LEAD} samples are queued ahead of the sample about to be read. Skipped
+     * while another thread is writing, which keeps the output queued itself.
+     */
+    private void keepOutputRunning() {
+        if (!outputLock.tryLock()) {
+            return;
+        }
+        try {
+            int length;
+            synchronized (reference) {
+                length = (int) Math.min(OUTPUT_LEAD, readIndex + delay + OUTPUT_LEAD - writeIndex);
+            }
+            if (length > 0) {
+                addReference(SILENCE, length);
+                for (int i = 0; i < length; i++) {
+                    audioIO.writeSample((byte) 0);
+                }
+            }
+        } finally {
+            outputLock.unlock();
+        }
+    }
+
+    private void addReference(byte[] samples, int length) {
+        synchronized (reference) {
+            // Samples written after the output has run dry are heard delay samples from now.
+            long start = Math.max(writeIndex, readIndex + delay);
+            if (start + length - readIndex > REFERENCE_SIZE) {
+                // Written further ahead than the output can be buffered. Not cancelled.
+                referenceOverruns.increment();
+            } else {
+                for (int i = 0; i < length; i++) {
+                    reference[(int) ((start + i) & (REFERENCE_SIZE - 1))] = samples[i];
+                }
+            }
+            writeIndex = start + length;
+        }
+    }
+
+    /**
+     * Subtracts the filter's estimate of the echo from the given sample, and adapts the filter.
+     *
+     * @param sample          the sample read
+     * @param referenceSample the reference sample that is heard in it, after the delay
+     * @return the sample with the echo removed
+     */
+    private byte cancel(byte sample, byte referenceSample) {
+        int taps = weights.length;
+        head = (head + taps - 1) % taps;
+        int oldest = (int) history[head];
+        history[head] = referenceSample;
+        historyPower += referenceSample * referenceSample - oldest * oldest;
+
+        double echo = 0;
+        double loudest = 0;
+        for (int k = 0; k < taps; k++) {
+            double x = history[(head + k) % taps];
+            echo += weights[k] * x;
+            loudest = Math.max(loudest, Math.abs(x));
+        }
+        double residual = sample - echo;
+
+        // Also checked while the reference is silent, so that another host already talking when this host starts
+        // transmitting is detected before the first adaptation.
+        if (Math.abs(sample) > doubleTalkRatio * loudest) {
+            doubleTalkHangover = DOUBLE_TALK_HANGOVER;
+        }
+        if (doubleTalkHangover > 0) {
+            doubleTalkHangover--;
+            if (historyPower > 0) {
+                doubleTalkSamples.increment();
+            }
+        } else if (historyPower > 0) {
+            double step = stepSize * residual / (historyPower + REGULARIZATION * taps);
+            for (int k = 0; k < taps; k++) {
+                weights[k] += step * history[(head + k) % taps];
+            }
+            echoPower += POWER_ALPHA * (sample * sample - echoPower);
+            residualPower += POWER_ALPHA * (residual * residual - residualPower);
+        }
+        return (byte) Math.max(Byte.MIN_VALUE, Math.min(Byte.MAX_VALUE, Math.round(residual)));
+    }
+
+    /**
+     * @return echo return loss enhancement, in dB: how much quieter the samples read are after cancellation,
+     * averaged over recent samples read while this host was transmitting alone. Read from the reading thread.
+     */
+    public double getEchoReturnLossEnhancement() {
+        return residualPower == 0 ? 0 : 10 * Math.log10(echoPower / residualPower);
+    }
+
+    /**
+     * @return the tap with the largest coefficient: the echo is loudest {@code delay} plus this many samples after
+     * it is written. Only meaningful if the echo falls within the filter. Read from the reading thread.
+     */
+    public int getEchoPathPeak() {
+        int peak = 0;
+        for (int k = 1; k < weights.length; k++) {
+            if (Math.abs(weights[k]) > Math.abs(weights[peak])) {
+                peak = k;
+            }
+        }
+        return peak;
+    }
+}
@@ -0,0 +1,76 @@
+/**
+ * {@code AudioIO} decorator that senses the carrier by measuring the energy of the samples read through it.
+ * <p>
+ * The energy is an exponential moving average of the squared sample level over roughly {@code window} samples,
+ * and the channel is considered busy while it is above {@code threshold}. Silence, and background noise below
+ * the threshold, reads as idle; any host's line encoded signal reads as busy within a fraction of a bit.
+ * <p>
+ * The energy is only updated as samples are read, so the decoder must be reading through this decorator
+ * (as it does continuously once a {@code ConnectionHost} is started) for carrier sense to be current.
+ */
+public class EnergyDetectingAudioIO implements AudioIO, CarrierSense {
+    // RealTimeAudioIO plays Manchester encoded signals at a level of about +-42, before the room attenuates them.
+    static final double DEFAULT_THRESHOLD = 100;  // squared sample level, i.e. an RMS level of 10
+    static final int DEFAULT_WINDOW = 32;  // samples
+
+    private final AudioIO audioIO;
+    private final double threshold;
+    private final double alpha;
+
+    private volatile double energy = 0;
+
+    public EnergyDetectingAudioIO(AudioIO audioIO) {
+        this(audioIO, DEFAULT_THRESHOLD, DEFAULT_WINDOW);
+    }
+
+    /**
+     * @param audioIO   the audio stream to read from and write to
+     * @param threshold the energy (mean squared sample level) above which the channel is busy
+     * @param window    the number of samples the energy is averaged over
+     */
+    public EnergyDetectingAudioIO(AudioIO audioIO, double threshold, int window) {
+        this.audioIO = audioIO;
+        this.threshold = threshold;
+        this.alpha = 1.0 / window;
+    }
+
+    @Override
+    public byte readSample() {
+        byte sample = audioIO.readSample();
+        energy += alpha * (sample * sample - energy);
+        return sample;
+    }
+
+    @Override
+    public byte[] readSamples(int n) {
+        byte[] samples = audioIO.readSamples(n);
+        double e = energy;
+        for (byte sample : samples) {
+            e += alpha * (sample * sample - e);
+        }
+        energy = e;
+        return samples;
+    }
+
+    @Override
+    public void writeSample(byte sample) {
+        audioIO.writeSample(sample);
+    }
+
+    @Override
+    public void writeSamples(byte[] samples) {
+        audioIO.writeSamples(samples);
+    }
+
+    @Override
+    public boolean isChannelBusy() {
+        return energy > threshold;
+    }
+
+    /**
+     * @return the current energy, as a mean squared sample level
+     */
+    public double getEnergy() {
+        return energy;
+    }
+}
@@ -1,20 +1,146 @@
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.channels.ClosedChannelException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.Semaphore;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 /**
  * Class to request and send files and entire directories over a {@code Connection}.
  *
+ * Files are synced rather than sent whole. The sender offers each file with its length and SHA-256 hash, and the
+ * receiver skips files it already has. Otherwise it replies with the {@code BlockSignature} of its own copy, sent in
+ * parts as it is computed, and the sender sends a delta against it, rsync style: instructions to copy blocks the
+ * receiver already has, and the rest of the file as literal chunks of up to {@code CHUNK_SIZE} bytes. Each
+ * instruction is a message of its own, read from the file as the connection's send buffer frees up, and applied at
+ * its offset as it arrives, so neither side ever holds more of a file than the connection buffers, however large it
+ * is.
+ *
+ * The receiver builds the new file next to the old one, in a {@code .part} file, and records how much of it is done
+ * in a {@code .journal} file. If the transfer is interrupted, the next offer of the same file resumes from there.
+ * Once the whole file has arrived and its hash checks out, it replaces the old copy.
+ *
+ * With a {@code ChunkStore} set, the receiver also keeps every file it receives as content-addressed chunks: the
+ * {@code CHUNK_SIZE} chunks of the file, from its start. Its reply to an offer then says so, and only then does the
+ * sender list the SHA-256 hash of each chunk of the file. The receiver copies the chunks its store holds into the
+ * {@code .part} file straight away, so that they can't be evicted before they are used, and tells the sender which
+ * ones it copied. Those are then sent as references rather than as literals, even if the file is new to the receiver.
+ * The same artifact pushed to many paths, or again after being deleted, then crosses the link once.
+ *
+ * Sending is pipelined, so that the link never waits on the disk. Directories are walked, and files hashed for their
+ * offers, by tasks on a {@code ForkJoinPool}, a subdirectory or file per task. Deltas are computed on the pool too,
+ * reading, matching and deflating literals ahead of transmission. Finished work is staged as transfers, each an
+ * unbroken sequence of messages, in a queue that a single transmitter task drains into the connection. At most
+ * {@code STAGING_CAPACITY} transfers are staged by the pool at a time, each holding at most
+ * {@code TRANSFER_CAPACITY} messages that haven't been sent yet, which bounds how far ahead the pool works.
+ * The receive loop never blocks on sending: replies to offers are computed and staged on the pool, like deltas,
+ * and other replies are staged without waiting.
+ *
+ * The transmitter, and the receive loop if started with {@code startParallelReceive()}, run on an executor, which
+ * {@code close} stops them on.
+ *
  * @author Oliver on 4/5/2018
  */
 public class FileTransferProtocol {
+    static final int CHUNK_SIZE = 4096;  // bytes
+    static final String PART_SUFFIX = ".part";
+    static final String JOURNAL_SUFFIX = ".journal";
+    // Delta instructions: the type (1 byte) and the offset in the file (8 bytes), followed by the literal bytes,
+    // or by the first block to copy and the number of blocks (4 bytes each).
+    // A deflated literal has the length of the literal (4 bytes) before the deflated bytes. An abort has no more.
+    // A cached chunk, already copied into the .part file from the chunk store, has its length (4 bytes) and SHA-256
+    // hash (32 bytes).
+    private static final byte LITERAL = 0;
+    private static final byte COPY = 1;
+    private static final byte DEFLATED_LITERAL = 2;
+    private static final byte ABORT = 3;
+    private static final byte CACHED = 4;
+    private static final int INSTRUCTION_HEADER_LENGTH = 1 + Long.BYTES;
+    // Chunk hashes are sent in parts of up to this many, each after the number of hashes in it (4 bytes). The last
+    // part is the first with fewer.
+    private static final int PART_CHUNKS = 128;
+    static final int STAGING_CAPACITY = 16;  // transfers
+    static final int TRANSFER_CAPACITY = 4;  // messages
+    // Bytes of the file read at a time while looking for matching blocks.
+    private static final int WINDOW_BUFFER_SIZE = 64 * 1024;
+
     private Path localBase;
     private Connection connection;
 
+    private final ForkJoinPool pool;
+    private final ExecutorService executor;
+    private final boolean isExecutorOwned;
+    private final BlockingQueue<Transfer> staging = new LinkedBlockingQueue<>();
+    private final Semaphore stagingPermits = new Semaphore(STAGING_CAPACITY);
+    private Future<?> transmitter;  // guarded by this
+    private Future<?> receiver;  // guarded by this
+    private boolean isClosed = false;  // guarded by this
+    // Offers answered by a receiver with a chunk store, waiting for it to say which chunks it has.
+    private final Map<Path, PendingSync> pendingSyncs = new ConcurrentHashMap<>();
+    private volatile ChunkStore chunkStore;
+
     public FileTransferProtocol(Connection connection, String localBase) {
+        this(connection, localBase, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Creates a protocol that runs its transmitter on a platform thread of its own.
+     *
+     * @param connection the connection to transfer files over
+     * @param localBase  the directory that paths are relative to
+     * @param pool       the pool to walk directories, hash files and compute deltas on
+     */
+    public FileTransferProtocol(Connection connection, String localBase, ForkJoinPool pool) {
+        this(connection, localBase, pool, IOExecutors.newExecutor("ftp-" + connection.name, false), true);
+    }
+
+    /**
+     * Creates a protocol that runs its transmitter, and the receive loop of {@code startParallelReceive()}, on the
+     * given executor, which is not shut down by {@code close}. The executor must run each task on its own thread.
+     *
+     * @param connection the connection to transfer files over
+     * @param localBase  the directory that paths are relative to
+     * @param pool       the pool to walk directories, hash files and compute deltas on
+     * @param executor   the executor to run the transmitter on, such as a virtual thread executor from
+     *                   {@code IOExecutors}
+     */
+    public FileTransferProtocol(Connection connection, String localBase, ForkJoinPool pool,
+                                ExecutorService executor) {
+        this(connection, localBase, pool, executor, false);
+    }
+
+    private FileTransferProtocol(Connection connection, String localBase, ForkJoinPool pool,
+                                 ExecutorService executor, boolean isExecutorOwned) {
         this.connection = connection;
         this.localBase = Paths.get(localBase);
+        this.pool = pool;
+        this.executor = executor;
+        this.isExecutorOwned = isExecutorOwned;
     }
 
     public static void main(String[] args) {
@@ -40,36 +166,101 @@ public class FileTransferProtocol {
     }
 
     /**
-     * Sends the file specified at {@code path}, by adding 2 messages to the connection's send queue.
-     * Message 1 - 'FTP_SEND ' + path
-     * Message 2 - raw binary file contents
+     * Keeps the chunks of every file received in the given store, and asks senders not to send the chunks it
+     * already holds.
+     *
+     * @param chunkStore the store, or {@code null} to stop using one
+     */
+    public void setChunkStore(ChunkStore chunkStore) {
+        this.chunkStore = chunkStore;
+    }
+
+    /**
+     * Offers the file specified at {@code path}, by adding a message to the connection's send queue, once the file
+     * has been hashed on the pool.
+     * Message 1 - 'FTP_OFFER ' + length + ' ' + SHA-256 hash (hex) + ' ' + path
+     * The receiver asks for a delta with {@code FTP_SYNC}, unless it already has the file.
      * @param path the path of the file to send
+     * @return a future that completes once the offer has been staged, or completes exceptionally with the
+     * {@code IOException} that prevented it
      */
-    public void sendFile(Path path) {
-        try {
-            byte[] fileContents = Files.readAllBytes(localBase.resolve(path));
-            connection.addMessageToSendQueue(("FTP_SEND " + path).getBytes());
-            connection.addMessageToSendQueue(fileContents);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+    public CompletableFuture<Void> sendFile(Path path) {
+        return offer(path);
     }
+
     /**
-     * Recursively sends all the files contained in the directory specified at {@code path}.
+     * Recursively offers all the files contained in the directory specified at {@code path}, as {@code sendFile}
+     * does. Subdirectories are walked and files hashed in parallel on the pool, so files are offered in no
+     * particular order.
      * @param path the path of the directory to send
+     * @return a future that completes once every file has been offered, or completes exceptionally with the first
+     * {@code IOException} that prevented a file or directory from being offered, with any others suppressed.
+     * The rest of the files are offered regardless.
      */
-    public void sendDirectory(Path path) {
-        try {
-            for (Path childPath : Files.newDirectoryStream(localBase.resolve(path))) {
-                if (childPath.toFile().isDirectory()) {
-//                    sendDirectory(Paths.get(localBasePath).relativize(childPath).toString());
-                    sendDirectory(localBase.relativize(childPath));
+    public CompletableFuture<Void> sendDirectory(Path path) {
+        return offer(path);
+    }
+
+    private CompletableFuture<Void> offer(Path path) {
+        CompletableFuture<Void> completion = new CompletableFuture<>();
+        List<IOException> errors = Collections.synchronizedList(new ArrayList<>());
+        pool.execute(() -> {
+            new OfferTask(path, errors).invoke();
+            if (errors.isEmpty()) {
+                completion.complete(null);
+            } else {
+                IOException error = errors.get(0);
+                for (IOException other : errors.subList(1, errors.size())) {
+                    error.addSuppressed(other);
+                }
+                completion.completeExceptionally(error);
+            }
+        });
+        return completion;
+    }
+
+    /**
+     * Offers a file, or forks a task for each entry of a directory.
+     */
+    private class OfferTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Path path;
+        private final List<IOException> errors;
+
+        OfferTask(Path path, List<IOException> errors) {
+            this.path = path;
+            this.errors = errors;
+        }
+
+        @Override
+        protected void compute() {
+            Path filePath = localBase.resolve(path);
+            try {
+                if (Files.isDirectory(filePath)) {
+                    List<OfferTask> children = new ArrayList<>();
+                    try (DirectoryStream<Path> entries = Files.newDirectoryStream(filePath)) {
+                        for (Path childPath : entries) {
+                            if (!isTransferState(childPath)) {
+                                children.add(new OfferTask(localBase.relativize(childPath), errors));
+                            }
+                        }
+                    }
+                    invokeAll(children);
                 } else {
-//                    sendFile(Paths.get(localBasePath).relativize(childPath).toString());
-                    sendFile(localBase.relativize(childPath));
+                    byte[] offer;
+                    try (FileChannel file = FileChannel.open(filePath, StandardOpenOption.READ)) {
+                        offer = ("FTP_OFFER " + file.size() + " " + hash(file) + " " + path).getBytes();
+                    }
+                    Transfer transfer = stage(true);
+                    transfer.put(offer);
+                    transfer.finish();
                 }
+            } catch (IOException e) {
+                errors.add(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
-        } catch (IOException e) {
         }
     }
 
@@ -80,7 +271,7 @@ public class FileTransferProtocol {
      * @param path the path of the file requested.
      */
     public void requestFile(String path) {
-        connection.addMessageToSendQueue(("FTP_REQUEST_FILE " + path).getBytes());
+        send(("FTP_REQUEST_FILE " + path).getBytes());
     }
 
 
@@ -91,32 +282,283 @@ public class FileTransferProtocol {
      * @param path the path of the directory requested.
      */
     public void requestDirectory(String path) {
-        connection.addMessageToSendQueue(("FTP_REQUEST_DIR " + path).getBytes());
+        send(("FTP_REQUEST_DIR " + path).getBytes());
     }
 
     /**
-     * Runs a while loop that calls {@code receive}.
+     * Stages the given messages as one transfer, without waiting.
      */
-    public void startParallelReceive() {
-        (new Thread(new Runnable() {
-            @Override
-            public void run() {
-                while (true) {
-                    receive();
+    private void send(byte[]... messages) {
+        Transfer transfer = new Transfer(messages.length + 1, false);
+        for (byte[] message : messages) {
+            transfer.messages.add(message);
+        }
+        transfer.messages.add(Transfer.END);
+        stage(transfer);
+    }
+
+    /**
+     * Stages a new transfer for the pool to fill, first waiting for fewer than {@code STAGING_CAPACITY} of them
+     * to be staged.
+     */
+    private Transfer stage(boolean isBounded) throws InterruptedException {
+        Transfer transfer = new Transfer(TRANSFER_CAPACITY, isBounded);
+        if (isBounded) {
+            Transfer.block(stagingPermits::tryAcquire, stagingPermits::acquire);
+        }
+        stage(transfer);
+        return transfer;
+    }
+
+    private synchronized void stage(Transfer transfer) {
+        if (isClosed) {
+            transfer.discard();
+            return;
+        }
+        staging.add(transfer);
+        if (transmitter == null) {
+            transmitter = executor.submit(this::transmit);
+        }
+    }
+
+    /**
+     * Sends the staged transfers, in the order they were staged, each message as soon as it has been produced.
+     * Once the connection is closed, messages are discarded, so that producers never wait for ever.
+     * Runs until interrupted by {@code close}.
+     */
+    private void transmit() {
+        boolean isConnectionClosed = false;
+        Transfer transfer = null;
+        try {
+            while (true) {
+                transfer = staging.take();
+                byte[] message;
+                while ((message = transfer.messages.take()) != Transfer.END) {
+                    if (!isConnectionClosed) {
+                        try {
+                            connection.sendMessage(message);
+                        } catch (ClosedChannelException e) {
+                            isConnectionClosed = true;
+                        }
+                    }
+                }
+                if (transfer.isBounded) {
+                    stagingPermits.release();
+                }
+                transfer = null;
+            }
+        } catch (InterruptedException e) {
+            // Stopped by close, which discards the transfers still staged.
+            if (transfer != null) {
+                transfer.discard();
+            }
+        }
+    }
+
+    /**
+     * Stops the transmitter, and the receive loop if it was started with {@code startParallelReceive()}, and shuts
+     * down the executor if the protocol created it. Transfers that haven't been sent are discarded, and tasks on
+     * the pool that are still producing them finish without sending anything. The connection is left open.
+     */
+    public void close() {
+        synchronized (this) {
+            if (isClosed) {
+                return;
+            }
+            isClosed = true;
+            if (transmitter != null) {
+                transmitter.cancel(true);
+            }
+            if (receiver != null) {
+                receiver.cancel(true);
+            }
+        }
+        // Releases producers waiting for room in a transfer, or for a transfer to be staged. No more are staged.
+        Transfer transfer;
+        while ((transfer = staging.poll()) != null) {
+            transfer.discard();
+        }
+        stagingPermits.release(Integer.MAX_VALUE / 2);
+        pendingSyncs.clear();
+        if (isExecutorOwned) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * A sequence of messages to send one after the other, produced while it is being sent.
+     */
+    private static class Transfer {
+        static final byte[] END = new byte[0];
+
+        final BlockingQueue<byte[]> messages;
+        // Whether it holds one of the stagingPermits.
+        final boolean isBounded;
+        // Set once the transfer won't be sent, after which messages put are dropped.
+        private volatile boolean isDiscarded = false;
+
+        Transfer(int capacity, boolean isBounded) {
+            messages = new ArrayBlockingQueue<>(capacity);
+            this.isBounded = isBounded;
+        }
+
+        /**
+         * Adds the next message, waiting while the transfer holds {@code TRANSFER_CAPACITY} unsent messages.
+         */
+        void put(byte[] message) throws InterruptedException {
+            block(() -> isDiscarded || messages.offer(message), () -> messages.put(message));
+        }
+
+        /**
+         * Drops the messages put so far, and any put from now on, waking a producer waiting for room.
+         */
+        void discard() {
+            isDiscarded = true;
+            messages.clear();
+        }
+
+        void finish() throws InterruptedException {
+            put(END);
+        }
+
+        /**
+         * Adds the next message, waiting as {@code put} does, but not stopping if interrupted. The interrupt status
+         * is kept.
+         */
+        void putUninterruptibly(byte[] message) {
+            boolean isInterrupted = Thread.interrupted();
+            while (true) {
+                try {
+                    put(message);
+                    break;
+                } catch (InterruptedException e) {
+                    isInterrupted = true;
                 }
             }
-        })).start();
+            if (isInterrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Runs {@code blocking} unless {@code attempt} succeeds, letting a ForkJoinPool make up for the blocked
+         * worker thread.
+         */
+        static void block(Attempt attempt, Blocking blocking) throws InterruptedException {
+            ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+                private boolean isDone = false;
+
+                @Override
+                public boolean block() throws InterruptedException {
+                    if (!isDone) {
+                        blocking.run();
+                        isDone = true;
+                    }
+                    return true;
+                }
+
+                @Override
+                public boolean isReleasable() {
+                    return isDone || (isDone = attempt.run());
+                }
+            });
+        }
+
+        interface Attempt {
+            boolean run();
+        }
+
+        interface Blocking {
+            void run() throws InterruptedException;
+        }
+    }
+
+    /**
+     * Runs a while loop that calls {@code receive}, on the protocol's executor, until {@code close}.
+     */
+    public synchronized void startParallelReceive() {
+        if (!isClosed && receiver == null) {
+            receiver = executor.submit(this::receiveLoop);
+        }
+    }
+
+    /**
+     * Runs a while loop that calls {@code receive}, as a task on the given executor, such as a virtual thread
+     * executor from {@code IOExecutors}. The loop stops when the task is canceled or the executor is shut down
+     * with {@code shutdownNow}.
+     *
+     * @param executor the executor to run the loop on
+     * @return the running loop
+     */
+    public Future<?> startParallelReceive(ExecutorService executor) {
+        return executor.submit(this::receiveLoop);
+    }
+
+    private void receiveLoop() {
+        while (!Thread.currentThread().isInterrupted()) {
+            receive();
+        }
     }
 
     /**
      * Gets the next message/s from the connection, and reacts appropriately,
      * by either saving a file that was sent, or by sending a file that was requested.
+     * Returns without doing anything if interrupted while waiting.
      */
     public void receive() {
-        String header = new String(connection.getMessage());
+        byte[] headerBytes = connection.getMessage();
+        if (headerBytes == null) {
+            return;
+        }
+        String header = new String(headerBytes);
 
-        if (header.startsWith("FTP_SEND ")) {
+        if (header.startsWith("FTP_OFFER ")) {
+            String[] fields = header.split(" ", 4);
+            pool.execute(() -> receiveOffer(Paths.get(fields[3]), Long.parseLong(fields[1]), fields[2]));
+        } else if (header.startsWith("FTP_SYNC ")) {
+            String[] fields = header.split(" ", 6);
+            BlockSignature signature = new BlockSignature(Integer.parseInt(fields[2]));
+            byte[] part;
+            do {
+                part = connection.getMessage();
+                if (part == null) {
+                    return;
+                }
+            } while (signature.add(part));
+            Path relativePath = Paths.get(fields[5]);
+            long resumeOffset = Long.parseLong(fields[1]);
+            if (!localBase.resolve(relativePath).toFile().isFile()) {
+                send("FTP_REQUEST_FAIL: resource not found".getBytes());
+            } else if (Boolean.parseBoolean(fields[3])) {
+                pendingSyncs.put(relativePath, new PendingSync(resumeOffset, fields[4], signature));
+                pool.execute(() -> sendChunkHashes(relativePath, resumeOffset));
+            } else {
+                pool.execute(() -> sendDelta(relativePath, resumeOffset, fields[4], signature, new BitSet()));
+            }
+        } else if (header.startsWith("FTP_CHUNKS ")) {
+            String[] fields = header.split(" ", 4);
+            receiveChunkHashes(Paths.get(fields[3]), Long.parseLong(fields[1]), Integer.parseInt(fields[2]));
+        } else if (header.startsWith("FTP_CACHED ")) {
+            Path relativePath = Paths.get(header.substring(header.indexOf(' ') + 1));
+            byte[] cached = connection.getMessage();
+            if (cached == null) {
+                return;
+            }
+            PendingSync sync = pendingSyncs.remove(relativePath);
+            if (sync != null) {
+                pool.execute(() -> sendDelta(relativePath, sync.resumeOffset, sync.offeredHash, sync.signature,
+                        parseChunks(cached)));
+            }
+        } else if (header.startsWith("FTP_DELTA ")) {
+            String[] fields = header.split(" ", 6);
+            receiveDelta(Paths.get(fields[5]), Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+                    Integer.parseInt(fields[3]), fields[4]);
+        } else if (header.startsWith("FTP_SEND ")) {
+            // Sent whole, by an older peer.
             byte[] fileContents = connection.getMessage();
+            if (fileContents == null) {
+                return;
+            }
             Path relativePath = Paths.get(header.substring(header.indexOf(' ') + 1));
             Path filePath = localBase.resolve(relativePath);
             filePath.getParent().toFile().mkdirs();
@@ -128,16 +570,16 @@ public class FileTransferProtocol {
         } else if (header.startsWith("FTP_REQUEST_FILE ")) {
             Path relativePath = Paths.get(header.substring(header.indexOf(' ') + 1));
             if (localBase.resolve(relativePath).toFile().exists()) {
-                sendFile(relativePath);
+                reportFailure(sendFile(relativePath));
             } else {
-                connection.addMessageToSendQueue("FTP_REQUEST_FAIL: resource not found".getBytes());
+                send("FTP_REQUEST_FAIL: resource not found".getBytes());
             }
         } else if (header.startsWith("FTP_REQUEST_DIR ")) {
             Path relativePath = Paths.get(header.substring(header.indexOf(' ') + 1));
             if (localBase.resolve(relativePath).toFile().exists()) {
-                sendDirectory(relativePath);
+                reportFailure(sendDirectory(relativePath));
             } else {
-                connection.addMessageToSendQueue("FTP_REQUEST_FAIL: resource not found".getBytes());
+                send("FTP_REQUEST_FAIL: resource not found".getBytes());
             }
         } else if (header.startsWith("FTP_REQUEST_FAIL")) {
             return;
@@ -145,4 +587,730 @@ public class FileTransferProtocol {
             throw new IllegalArgumentException("invalid message header " + header);
         }
     }
+
+    /**
+     * Tells the requester if any of the requested files couldn't be offered.
+     */
+    private void reportFailure(CompletableFuture<Void> offers) {
+        offers.whenComplete((result, e) -> {
+            if (e != null) {
+                e.printStackTrace();
+                send(("FTP_REQUEST_FAIL: " + e).getBytes());
+            }
+        });
+    }
+
+    /**
+     * Replies to an offer of a file: does nothing if the local copy is identical, and otherwise asks for a delta
+     * against the local copy, resuming an interrupted transfer of the same file. Runs on the pool, and stages the
+     * reply as a transfer, writing the signature into it as it is computed.
+     * Message 1 - 'FTP_SYNC ' + offset to resume from + ' ' + block size + ' ' + whether there is a chunk store
+     * + ' ' + the offered hash + ' ' + path
+     * Messages 2.. - the parts of the {@code BlockSignature} of the local copy
+     * With a chunk store, the sender then lists the hashes of the file's chunks with {@code FTP_CHUNKS}, and sends
+     * the delta once {@code receiveChunkHashes} has replied. Otherwise it sends the delta straight away.
+     */
+    private void receiveOffer(Path relativePath, long length, String hash) {
+        Path filePath = localBase.resolve(relativePath);
+        try {
+            if (Files.isRegularFile(filePath) && Files.size(filePath) == length && hash(filePath).equals(hash)) {
+                // Already have it. Any interrupted transfer of it is moot.
+                Files.deleteIfExists(sibling(filePath, PART_SUFFIX));
+                Files.deleteIfExists(sibling(filePath, JOURNAL_SUFFIX));
+                return;
+            }
+            long resumeOffset = readJournal(filePath, length, hash);
+            int blockSize = BlockSignature.blockSize(Files.isRegularFile(filePath) ? Files.size(filePath) : 0);
+            boolean isCaching = chunkStore != null;
+            // Once started, the reply is finished regardless, so that the peer doesn't wait for the rest of it.
+            Transfer transfer = stage(true);
+            transfer.putUninterruptibly(("FTP_SYNC " + resumeOffset + " " + blockSize + " " + isCaching + " " + hash
+                    + " " + relativePath).getBytes());
+            try {
+                BlockSignature.write(filePath, blockSize, transfer::putUninterruptibly);
+            } catch (IOException e) {
+                // The signature still ended, with the blocks read so far.
+                e.printStackTrace();
+            }
+            transfer.putUninterruptibly(Transfer.END);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Lists the hashes of the chunks of the file specified at {@code path}, for a receiver with a chunk store to say
+     * which of them it has, by staging a transfer. Runs on the pool.
+     * Message 1 - 'FTP_CHUNKS ' + length + ' ' + first chunk listed + ' ' + path
+     * Messages 2.. - parts of up to {@code PART_CHUNKS} SHA-256 chunk hashes, from the first chunk that starts at
+     * or after {@code resumeOffset}
+     */
+    private void sendChunkHashes(Path path, long resumeOffset) {
+        int firstChunk = (int) ((resumeOffset + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        Transfer transfer = null;
+        try (FileChannel file = FileChannel.open(localBase.resolve(path), StandardOpenOption.READ)) {
+            long length = file.size();
+            transfer = stage(true);
+            // Once staged, the transfer is ended regardless, so that the receiver doesn't wait for the rest of it.
+            transfer.putUninterruptibly(("FTP_CHUNKS " + length + " " + firstChunk + " " + path).getBytes());
+            MessageDigest digest = BlockSignature.sha256();
+            byte[] chunk = new byte[CHUNK_SIZE];
+            ByteBuffer part = ByteBuffer.allocate(Integer.BYTES + PART_CHUNKS * ChunkStore.HASH_LENGTH);
+            part.putInt(0);
+            int partChunks = 0;
+            try {
+                int read;
+                for (long offset = (long) firstChunk * CHUNK_SIZE; (read = read(file, chunk, offset)) > 0;
+                     offset += read) {
+                    if (partChunks == PART_CHUNKS) {
+                        transfer.putUninterruptibly(part.putInt(0, partChunks).array());
+                        part = ByteBuffer.allocate(part.capacity());
+                        part.putInt(0);
+                        partChunks = 0;
+                    }
+                    digest.update(chunk, 0, read);
+                    part.put(digest.digest());
+                    partChunks++;
+                }
+            } finally {
+                if (partChunks == PART_CHUNKS) {
+                    transfer.putUninterruptibly(part.putInt(0, partChunks).array());
+                    part = ByteBuffer.allocate(Integer.BYTES);
+                    partChunks = 0;
+                }
+                transfer.putUninterruptibly(Arrays.copyOf(part.putInt(0, partChunks).array(),
+                        Integer.BYTES + partChunks * ChunkStore.HASH_LENGTH));
+                transfer.putUninterruptibly(Transfer.END);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            if (transfer == null) {
+                pendingSyncs.remove(path);
+                send(("FTP_REQUEST_FAIL: " + e).getBytes());
+            }
+        } catch (InterruptedException e) {
+            pendingSyncs.remove(path);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Receives the chunk hashes listed by {@code sendChunkHashes}, and copies each chunk that the chunk store holds
+     * into the {@code .part} file, at its offset. Copying them now, rather than when the delta refers to them, means
+     * that a chunk evicted in between can't leave the file incomplete. Then tells the sender which chunks were
+     * copied, by staging 2 messages.
+     * Message 1 - 'FTP_CACHED ' + path
+     * Message 2 - the number of chunks (4 bytes), followed by a bitmap of the chunks copied, as
+     * {@code BitSet.toByteArray}
+     * Returns without doing anything more if interrupted while waiting.
+     */
+    private void receiveChunkHashes(Path relativePath, long length, int firstChunk) {
+        Path filePath = localBase.resolve(relativePath);
+        ChunkStore chunkStore = this.chunkStore;
+        FileChannel part = null;
+        if (chunkStore != null) {
+            filePath.getParent().toFile().mkdirs();
+            try {
+                part = FileChannel.open(sibling(filePath, PART_SUFFIX), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        int chunks = (int) ((length + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        BitSet cached = new BitSet(chunks);
+        try {
+            int chunk = firstChunk;
+            int count;
+            do {
+                byte[] message = connection.getMessage();
+                if (message == null) {
+                    return;
+                }
+                ByteBuffer hashes = ByteBuffer.wrap(message);
+                count = hashes.getInt();
+                byte[] hash = new byte[ChunkStore.HASH_LENGTH];
+                for (int i = 0; i < count; i++, chunk++) {
+                    hashes.get(hash);
+                    if (part == null) {
+                        continue;
+                    }
+                    long offset = (long) chunk * CHUNK_SIZE;
+                    byte[] data;
+                    try {
+                        data = chunkStore.get(hash);
+                    } catch (IOException e) {
+                        // Dropped from the store. Sent as a literal instead.
+                        e.printStackTrace();
+                        continue;
+                    }
+                    if (data == null || data.length != Math.min(CHUNK_SIZE, length - offset)) {
+                        continue;
+                    }
+                    try {
+                        ByteBuffer buffer = ByteBuffer.wrap(data);
+                        while (buffer.hasRemaining()) {
+                            part.write(buffer, offset + buffer.position());
+                        }
+                        cached.set(chunk);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                        close(part);
+                        part = null;
+                    }
+                }
+            } while (count == PART_CHUNKS);
+        } finally {
+            close(part);
+        }
+        byte[] bitmap = cached.toByteArray();
+        send(("FTP_CACHED " + relativePath).getBytes(),
+                ByteBuffer.allocate(Integer.BYTES + bitmap.length).putInt(chunks).put(bitmap).array());
+    }
+
+    /**
+     * Sends the file specified at {@code path} as a delta against the receiver's copy, by staging a transfer of
+     * 1 + (number of instructions) messages. Runs on the pool.
+     * Message 1 - 'FTP_DELTA ' + length + ' ' + offset + ' ' + block size + ' ' + SHA-256 hash (hex) + ' ' + path
+     * Messages 2.. - instructions that together cover the file from the offset to its end, in order. Literals are
+     * deflated, unless that doesn't make them smaller. Chunks the receiver copied from its chunk store are sent as
+     * their hash.
+     * If the file has changed since it was offered, it is sent from the start. If it shrinks while it is sent,
+     * the rest of it is sent as zeros, and fails the receiver's hash check.
+     *
+     * @param path         the path of the file to send
+     * @param resumeOffset the offset to send the file from, if it is still the file with the offered hash
+     * @param offeredHash  the hash of the file when it was offered
+     * @param signature    the signature of the receiver's copy
+     * @param cached       the chunks of the offered file that the receiver copied from its chunk store
+     */
+    private void sendDelta(Path path, long resumeOffset, String offeredHash, BlockSignature signature,
+                           BitSet cached) {
+        Transfer transfer = null;
+        boolean isFinished = false;
+        try (FileChannel file = FileChannel.open(localBase.resolve(path), StandardOpenOption.READ)) {
+            long length = file.size();
+            String hash = hash(file);
+            long offset = hash.equals(offeredHash) && resumeOffset <= length ? resumeOffset : 0;
+            if (!hash.equals(offeredHash)) {
+                // The chunks have changed too.
+                cached.clear();
+            }
+            int blockSize = signature.blockSize;
+            transfer = stage(true);
+            // Once staged, the transfer is ended regardless, so that the transmitter moves on.
+            transfer.putUninterruptibly(("FTP_DELTA " + length + " " + offset + " " + blockSize + " " + hash + " "
+                    + path).getBytes());
+
+            DeltaSender delta = new DeltaSender(file, offset, transfer);
+            try {
+                sendInstructions(file, offset, length, signature, cached, delta);
+            } finally {
+                delta.end();
+            }
+            transfer.putUninterruptibly(Transfer.END);
+            isFinished = true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            if (transfer == null) {
+                send(("FTP_REQUEST_FAIL: " + e).getBytes());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (!isFinished) {
+                // Also on any other Throwable.
+                abort(transfer);
+            }
+        }
+    }
+
+    /**
+     * Ends a delta that can't be finished with an abort instruction, which leaves the receiver able to resume from
+     * the last instruction it received.
+     */
+    private static void abort(Transfer transfer) {
+        if (transfer == null) {
+            return;
+        }
+        transfer.putUninterruptibly(ByteBuffer.allocate(INSTRUCTION_HEADER_LENGTH).put(ABORT).array());
+        transfer.putUninterruptibly(Transfer.END);
+    }
+
+    /**
+     * Finds the blocks of the signature in the file from {@code offset}, and sends the instructions to rebuild it.
+     * Cached chunks are sent as such wherever they start.
+     */
+    private static void sendInstructions(FileChannel file, long offset, long length, BlockSignature signature,
+                                         BitSet cached, DeltaSender delta) throws IOException, InterruptedException {
+        int blockSize = signature.blockSize;
+        MessageDigest digest = BlockSignature.sha256();
+        byte[] buffer = new byte[Math.max(WINDOW_BUFFER_SIZE, 2 * blockSize)];
+        long bufferStart = offset;
+        int bufferLength = 0;
+        // The window is the blockSize bytes from position. Its weak checksum is rolled on one byte at a time.
+        long position = offset;
+        int weak = 0;
+        boolean isWeakValid = false;
+        while (position < length) {
+            if (position % CHUNK_SIZE == 0 && cached.get((int) (position / CHUNK_SIZE))) {
+                int chunkLength = (int) Math.min(CHUNK_SIZE, length - position);
+                delta.cached(position, chunkLength);
+                position += chunkLength;
+                isWeakValid = false;
+                continue;
+            }
+            if (signature.blocks() == 0 || position + blockSize > length) {
+                // No block can match from here. Skip to the next cached chunk.
+                int next = cached.nextSetBit((int) (position / CHUNK_SIZE) + 1);
+                position = next < 0 ? length : Math.min(length, (long) next * CHUNK_SIZE);
+                delta.literalUpTo(position);
+                continue;
+            }
+            // The window and the byte after it must be in the buffer.
+            if (Math.min(position + blockSize + 1, length) > bufferStart + bufferLength) {
+                bufferStart = position;
+                bufferLength = read(file, buffer, bufferStart);
+                if (bufferLength < blockSize) {
+                    // The file shrank.
+                    break;
+                }
+            }
+            int windowOffset = (int) (position - bufferStart);
+            if (!isWeakValid) {
+                weak = BlockSignature.weak(buffer, windowOffset, blockSize);
+                isWeakValid = true;
+            }
+            int block = signature.find(weak, buffer, windowOffset, digest);
+            if (block >= 0) {
+                delta.copy(position, block, blockSize);
+                position += blockSize;
+                isWeakValid = false;
+            } else {
+                if (position + blockSize < length) {
+                    weak = BlockSignature.roll(weak, buffer[windowOffset], buffer[windowOffset + blockSize],
+                            blockSize);
+                }
+                position++;
+                delta.literalUpTo(position);
+            }
+        }
+        delta.finish(length);
+    }
+
+    /**
+     * Reads from the given offset into {@code buffer}, until it is full or the file ends.
+     *
+     * @return the number of bytes read
+     */
+    private static int read(FileChannel file, byte[] buffer, long offset) throws IOException {
+        ByteBuffer dst = ByteBuffer.wrap(buffer);
+        while (dst.hasRemaining()) {
+            if (file.read(dst, offset + dst.position()) < 0) {
+                break;
+            }
+        }
+        return dst.position();
+    }
+
+    /**
+     * Sends the instructions of a delta. Bytes that no block matched accumulate as a literal, which is sent once
+     * it reaches {@code CHUNK_SIZE} or a block matches. Matches of consecutive blocks are sent as one copy.
+     */
+    private static class DeltaSender {
+        private final FileChannel file;
+        private final Transfer transfer;
+        private final Deflater deflater = new Deflater();
+        private final byte[] deflated = new byte[CHUNK_SIZE];
+        private long literalStart;
+        // A run of blocks to copy that hasn't been sent yet, or copyCount == 0.
+        private long copyOffset;
+        private int copyBlock;
+        private int copyCount = 0;
+
+        DeltaSender(FileChannel file, long offset, Transfer transfer) {
+            this.file = file;
+            this.transfer = transfer;
+            literalStart = offset;
+        }
+
+        void copy(long offset, int block, int blockSize) throws IOException, InterruptedException {
+            sendLiteral(offset);
+            if (copyCount > 0 && copyOffset + (long) copyCount * blockSize == offset
+                    && block == copyBlock + copyCount) {
+                copyCount++;
+            } else {
+                sendCopy();
+                copyOffset = offset;
+                copyBlock = block;
+                copyCount = 1;
+            }
+            literalStart = offset + blockSize;
+        }
+
+        /**
+         * Sends a chunk that the receiver copied from its chunk store as its hash.
+         */
+        void cached(long offset, int length) throws IOException, InterruptedException {
+            sendLiteral(offset);
+            sendCopy();
+            byte[] chunk = new byte[length];
+            read(file, chunk, offset);
+            ByteBuffer instruction = ByteBuffer.allocate(INSTRUCTION_HEADER_LENGTH + Integer.BYTES
+                    + ChunkStore.HASH_LENGTH);
+            instruction.put(CACHED).putLong(offset).putInt(length).put(BlockSignature.sha256().digest(chunk));
+            transfer.put(instruction.array());
+            literalStart = offset + length;
+        }
+
+        /**
+         * Notes that no block matched before {@code end}.
+         */
+        void literalUpTo(long end) throws IOException, InterruptedException {
+            while (end - literalStart >= CHUNK_SIZE) {
+                sendLiteral(literalStart + CHUNK_SIZE);
+            }
+        }
+
+        /**
+         * Sends the rest of the file, up to {@code length}, as literals.
+         */
+        void finish(long length) throws IOException, InterruptedException {
+            while (literalStart < length) {
+                sendLiteral(Math.min(length, literalStart + CHUNK_SIZE));
+            }
+            sendCopy();
+        }
+
+        private void sendCopy() throws InterruptedException, IOException {
+            if (copyCount == 0) {
+                return;
+            }
+            ByteBuffer instruction = ByteBuffer.allocate(INSTRUCTION_HEADER_LENGTH + 2 * Integer.BYTES);
+            instruction.put(COPY).putLong(copyOffset).putInt(copyBlock).putInt(copyCount);
+            transfer.put(instruction.array());
+            copyCount = 0;
+        }
+
+        private void sendLiteral(long end) throws IOException, InterruptedException {
+            if (end <= literalStart) {
+                return;
+            }
+            sendCopy();
+            // A new array for each literal, since the connection keeps it until it has been sent.
+            int length = (int) (end - literalStart);
+            byte[] literal = new byte[INSTRUCTION_HEADER_LENGTH + length];
+            ByteBuffer buffer = ByteBuffer.wrap(literal);
+            buffer.put(LITERAL).putLong(literalStart);
+            while (buffer.hasRemaining()) {
+                if (file.read(buffer, literalStart + buffer.position() - INSTRUCTION_HEADER_LENGTH) < 0) {
+                    // The file shrank. The rest of the literal stays zero.
+                    break;
+                }
+            }
+            // Deflated only if the deflated bytes and their length come out shorter than the literal.
+            int deflatedLength = 0;
+            boolean isDeflated = false;
+            if (length > Integer.BYTES) {
+                deflater.reset();
+                deflater.setInput(literal, INSTRUCTION_HEADER_LENGTH, length);
+                deflater.finish();
+                deflatedLength = deflater.deflate(deflated, 0, Math.min(deflated.length, length - Integer.BYTES));
+                isDeflated = deflater.finished();
+            }
+            if (isDeflated) {
+                ByteBuffer instruction = ByteBuffer.allocate(INSTRUCTION_HEADER_LENGTH + Integer.BYTES
+                        + deflatedLength);
+                instruction.put(DEFLATED_LITERAL).putLong(literalStart).putInt(length).put(deflated, 0,
+                        deflatedLength);
+                transfer.put(instruction.array());
+            } else {
+                transfer.put(literal);
+            }
+            literalStart = end;
+        }
+
+        void end() {
+            deflater.end();
+        }
+    }
+
+    /**
+     * An {@code FTP_SYNC} reply waiting for {@code FTP_CACHED}, with what {@code sendDelta} then needs.
+     */
+    private static class PendingSync {
+        final long resumeOffset;
+        final String offeredHash;
+        final BlockSignature signature;
+
+        PendingSync(long resumeOffset, String offeredHash, BlockSignature signature) {
+            this.resumeOffset = resumeOffset;
+            this.offeredHash = offeredHash;
+            this.signature = signature;
+        }
+    }
+
+    /**
+     * Receives the instructions of a delta sent by {@code sendDelta}, and applies each one to the {@code .part}
+     * file as it arrives, copying blocks from the local copy of the file. Progress is recorded in the journal after
+     * each instruction. Once the whole file has arrived, it replaces the local copy if its hash is right, and is
+     * deleted otherwise. If the file can't be written, the rest of the instructions are still read, so that the
+     * next message is a header. Returns without doing anything more if interrupted while waiting.
+     */
+    private void receiveDelta(Path relativePath, long length, long offset, int blockSize, String hash) {
+        Path filePath = localBase.resolve(relativePath);
+        Path partPath = sibling(filePath, PART_SUFFIX);
+        Path journalPath = sibling(filePath, JOURNAL_SUFFIX);
+        filePath.getParent().toFile().mkdirs();
+        FileChannel part = null;
+        FileChannel basis = null;
+        try {
+            // Not truncated: a delta from the start writes the whole file, except the chunks that
+            // receiveChunkHashes has already copied in, which are checked instead.
+            part = FileChannel.open(partPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            if (Files.isRegularFile(filePath)) {
+                basis = FileChannel.open(filePath, StandardOpenOption.READ);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            close(part);
+            part = null;
+        }
+        Inflater inflater = new Inflater();
+        try {
+            long received = offset;
+            while (received < length) {
+                byte[] message = connection.getMessage();
+                if (message == null) {
+                    return;
+                }
+                ByteBuffer instruction = ByteBuffer.wrap(message);
+                byte type = instruction.get();
+                long start = instruction.getLong();
+                if (type == ABORT) {
+                    // The sender couldn't read the file. The transfer can be resumed from the journal.
+                    System.err.println("Transfer of " + relativePath + " aborted by the sender.");
+                    return;
+                }
+                int block = 0;
+                int literalLength = 0;
+                long end;
+                if (type == COPY) {
+                    block = instruction.getInt();
+                    end = start + (long) instruction.getInt() * blockSize;
+                } else if (type == DEFLATED_LITERAL || type == CACHED) {
+                    literalLength = instruction.getInt();
+                    end = start + literalLength;
+                } else {
+                    end = start + instruction.remaining();
+                }
+                received = end;
+                if (part == null) {
+                    continue;
+                }
+                try {
+                    if (type == COPY) {
+                        copyBlocks(basis, (long) block * blockSize, part, start, end - start);
+                    } else if (type == CACHED) {
+                        checkCached(part, start, literalLength, instruction);
+                    } else {
+                        if (type == DEFLATED_LITERAL) {
+                            instruction = inflate(inflater, instruction, literalLength);
+                        } else {
+                            instruction = instruction.slice();
+                        }
+                        while (instruction.hasRemaining()) {
+                            part.write(instruction, start + instruction.position());
+                        }
+                    }
+                    // The journal must never claim more than is on disk.
+                    part.force(false);
+                    Files.write(journalPath, (hash + " " + length + " " + end).getBytes());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    close(part);
+                    part = null;
+                }
+            }
+            if (part == null) {
+                return;
+            }
+            part.truncate(length);
+            close(part);
+            part = null;
+            close(basis);
+            basis = null;
+            if (hash(partPath).equals(hash)) {
+                move(partPath, filePath);
+                ChunkStore chunkStore = this.chunkStore;
+                if (chunkStore != null) {
+                    store(filePath, chunkStore);
+                }
+            } else {
+                System.err.println("Received " + relativePath + " does not match its hash. Discarded.");
+                Files.delete(partPath);
+            }
+            Files.deleteIfExists(journalPath);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            inflater.end();
+            close(part);
+            close(basis);
+        }
+    }
+
+    /**
+     * Checks that a chunk copied into the {@code .part} file by {@code receiveChunkHashes} is still there, with the
+     * hash given by a {@code CACHED} instruction.
+     */
+    private static void checkCached(FileChannel part, long start, int length, ByteBuffer instruction)
+            throws IOException {
+        byte[] hash = new byte[ChunkStore.HASH_LENGTH];
+        instruction.get(hash);
+        byte[] chunk = new byte[length];
+        if (read(part, chunk, start) != length
+                || !MessageDigest.isEqual(BlockSignature.sha256().digest(chunk), hash)) {
+            // The next offer resumes from the last instruction applied.
+            throw new IOException("Chunk " + toHex(hash) + " is not in the .part file");
+        }
+    }
+
+    /**
+     * Adds the chunks of the given file to the chunk store.
+     */
+    private static void store(Path filePath, ChunkStore chunkStore) throws IOException {
+        try (FileChannel file = FileChannel.open(filePath, StandardOpenOption.READ)) {
+            byte[] chunk = new byte[CHUNK_SIZE];
+            int length;
+            for (long offset = 0; (length = read(file, chunk, offset)) > 0; offset += length) {
+                chunkStore.put(chunk, 0, length);
+            }
+        }
+    }
+
+    /**
+     * @return the chunks set in a bitmap sent by {@code receiveOffer}
+     */
+    private static BitSet parseChunks(byte[] message) {
+        ByteBuffer buffer = ByteBuffer.wrap(message);
+        buffer.getInt();
+        return BitSet.valueOf(buffer);
+    }
+
+    private static ByteBuffer inflate(Inflater inflater, ByteBuffer deflated, int length) throws IOException {
+        byte[] literal = new byte[length];
+        inflater.reset();
+        inflater.setInput(deflated.array(), deflated.position(), deflated.remaining());
+        try {
+            if (inflater.inflate(literal) != length || !inflater.finished()) {
+                throw new IOException("Deflated literal is not " + length + " bytes long");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        }
+        return ByteBuffer.wrap(literal);
+    }
+
+    private static void copyBlocks(FileChannel basis, long from, FileChannel part, long to, long length)
+            throws IOException {
+        if (basis == null) {
+            // The local copy was deleted after its signature was sent. Left as zeros, to fail the hash check.
+            return;
+        }
+        part.position(to);
+        long copied = 0;
+        while (copied < length) {
+            long transferred = basis.transferTo(from + copied, length - copied, part);
+            if (transferred <= 0) {
+                // The local copy shrank.
+                return;
+            }
+            copied += transferred;
+        }
+    }
+
+    /**
+     * @return the offset that an interrupted transfer of the file with the given length and hash had reached,
+     * or 0 if there is none
+     */
+    private static long readJournal(Path filePath, long length, String hash) {
+        Path journalPath = sibling(filePath, JOURNAL_SUFFIX);
+        Path partPath = sibling(filePath, PART_SUFFIX);
+        try {
+            if (!Files.isRegularFile(journalPath) || !Files.isRegularFile(partPath)) {
+                return 0;
+            }
+            String[] fields = new String(Files.readAllBytes(journalPath)).trim().split(" ");
+            if (fields.length != 3 || !fields[0].equals(hash) || Long.parseLong(fields[1]) != length) {
+                return 0;
+            }
+            long completed = Long.parseLong(fields[2]);
+            return completed <= Files.size(partPath) ? completed : 0;
+        } catch (IOException | NumberFormatException e) {
+            // A journal cut short by a crash. Start over.
+            return 0;
+        }
+    }
+
+    private static void move(Path from, Path to) throws IOException {
+        try {
+            Files.move(from, to, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(from, to, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static Path sibling(Path filePath, String suffix) {
+        return filePath.resolveSibling(filePath.getFileName() + suffix);
+    }
+
+    /**
+     * @return whether the file is a {@code .part} or {@code .journal} file of a transfer in progress
+     */
+    private static boolean isTransferState(Path filePath) {
+        String name = filePath.getFileName().toString();
+        return name.endsWith(PART_SUFFIX) || name.endsWith(JOURNAL_SUFFIX);
+    }
+
+    /**
+     * @return the SHA-256 hash of the file, in hex
+     */
+    static String hash(Path filePath) throws IOException {
+        try (FileChannel file = FileChannel.open(filePath, StandardOpenOption.READ)) {
+            return hash(file);
+        }
+    }
+
+    private static String hash(FileChannel file) throws IOException {
+        MessageDigest digest = BlockSignature.sha256();
+        byte[] chunk = new byte[CHUNK_SIZE];
+        int length;
+        for (long offset = 0; (length = read(file, chunk, offset)) > 0; offset += length) {
+            digest.update(chunk, 0, length);
+        }
+        return toHex(digest.digest());
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(2 * bytes.length);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    private static void close(FileChannel file) {
+        if (file == null) {
+            return;
+        }
+        try {
+            file.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 }
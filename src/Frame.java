@@ -1,22 +1,56 @@
+import java.nio.ByteBuffer;
+
 /**
  * @author Oliver on 3/8/2018
  */
 public class Frame {
     public static final byte PROTOCOL_CONNECTION = 0;
     public static final byte PROTOCOL_PING = 1;
+    public static final byte PROTOCOL_MULTICAST = 2;
+
+    // source, dest, seq, ack_seq, sack, window, flags, protocol, pay_length
+    static final int HEADER_LENGTH = 2 + 2 + 2 + 2 + 4 + 2 + 1 + 1 + 2;
+    // BEG frames extend the header with the length of the whole message.
+    static final int BEG_HEADER_LENGTH = HEADER_LENGTH + 4;
+    private static final int FLAGS_OFFSET = 2 + 2 + 2 + 2 + 4 + 2;
+    static final int MAX_WINDOW = 0xFFFF;
+    private static final int SYN_MASK = 0b00000001;
+    private static final int ACK_MASK = 0b00000010;
+    private static final int FIN_MASK = 0b00000100;
+    private static final int STR_MASK = 0b00001000;
+    private static final int BEG_MASK = 0b00010000;
+    private static final int END_MASK = 0b00100000;
+
+    private static final ByteBuffer EMPTY_PAYLOAD = ByteBuffer.allocate(0).asReadOnlyBuffer();
+
     Address source;
     Address dest;
-    byte seq;
+    short seq;
+    // When ack is set: the next seq expected by the sender of this frame (all earlier frames were received),
+    // and a bitmap of frames received out of order, bit i standing for ackSeq + 1 + i.
+    short ackSeq;
+    int sack;
+    // When ack is set: the number of bytes of data the sender of this frame is prepared to receive, up to MAX_WINDOW.
+    int window;
     boolean syn;
     boolean ack;
     boolean fin;
+    // Stream data, which is not part of a message, rather than a frame of a message.
+    boolean str;
     boolean beg;
     boolean end;
     byte protocol;
-    byte[] payload;
+    // When beg is set: the total length of the message that this frame starts.
+    int messageLength;
+    // May be a view into a larger buffer, such as the message a frame was sliced from.
+    // Never modify its contents, and use duplicate() or absolute gets to read it.
+    ByteBuffer payload;
+    // Not sent. Set by the FrameIO when the payload failed its checksum, which is only passed on for
+    // PROTOCOL_PING frames, so that link monitors can count the bit errors in their known payloads.
+    boolean isCorrupt;
 
-    public Frame(Address source, Address dest, byte seq,
-                 boolean syn, boolean ack, boolean fin, boolean beg, boolean end, byte protocol, byte[] payload) {
+    public Frame(Address source, Address dest, short seq,
+                 boolean syn, boolean ack, boolean fin, boolean beg, boolean end, byte protocol, ByteBuffer payload) {
         this.source = source;
         this.dest = dest;
         this.seq = seq;
@@ -29,14 +63,170 @@ public class Frame {
         this.payload = payload;
     }
 
-    public Frame(Address source, Address dest, byte seq,
+    public Frame(Address source, Address dest, short seq,
+                 boolean syn, boolean ack, boolean fin, boolean beg, boolean end, byte protocol, byte[] payload) {
+        this(source, dest, seq, syn, ack, fin, beg, end, protocol, ByteBuffer.wrap(payload));
+    }
+
+    public Frame(Address source, Address dest, short seq,
                  boolean syn, boolean ack, boolean fin, boolean beg, boolean end, byte protocol) {
-        this(source, dest, seq, syn, ack, fin, beg, end, protocol, new byte[]{});
+        this(source, dest, seq, syn, ack, fin, beg, end, protocol, EMPTY_PAYLOAD);
+    }
+
+    /**
+     * Returns the length of the header that starts with the given fixed-length part,
+     * including the message length extension of BEG frames.
+     *
+     * @param header at least the first {@code HEADER_LENGTH} bytes of a header
+     * @return {@code HEADER_LENGTH} or {@code BEG_HEADER_LENGTH}
+     */
+    static int headerLength(byte[] header) {
+        return (header[FLAGS_OFFSET] & BEG_MASK) != 0 ? BEG_HEADER_LENGTH : HEADER_LENGTH;
+    }
+
+    /**
+     * Reads a frame header written by {@code putHeader}.
+     * The returned frame has a zero-filled payload of the length given in the header.
+     *
+     * @param header the buffer to read the header from
+     * @return the frame described by the header
+     */
+    static Frame getHeader(ByteBuffer header) {
+        Address source = new Address(header.get(), header.get());
+        Address dest = new Address(header.get(), header.get());
+        short seq = header.getShort();
+        short ackSeq = header.getShort();
+        int sack = header.getInt();
+        int window = header.getShort() & 0xFFFF;
+        byte flags = header.get();
+        byte protocol = header.get();
+        int payloadLength = header.getShort() & 0xFFFF;
+        Frame frame = new Frame(source, dest, seq, false, false, false, false, false, protocol, new byte[payloadLength]);
+        frame.setFlags(flags);
+        frame.ackSeq = ackSeq;
+        boolean beg = frame.beg;
+        frame.sack = sack;
+        frame.window = window;
+        if (beg) {
+            frame.messageLength = header.getInt();
+        }
+        return frame;
+    }
+
+    /**
+     * Writes the header fields of this frame, {@code headerLength()} bytes in total.
+     *
+     * @param header the buffer to write to
+     */
+    void putHeader(ByteBuffer header) {
+        header.put(source.host);
+        header.put(source.port);
+        header.put(dest.host);
+        header.put(dest.port);
+        header.putShort(seq);
+        header.putShort(ackSeq);
+        header.putInt(sack);
+        header.putShort((short) window);
+        header.put(flags());
+        header.put(protocol);
+        header.putShort((short) payloadLength());
+        if (beg) {
+            header.putInt(messageLength);
+        }
+    }
+
+    /**
+     * @return the flags byte of this frame's header
+     */
+    byte flags() {
+        byte flags = 0;
+        if (syn) flags |= SYN_MASK;
+        if (ack) flags |= ACK_MASK;
+        if (fin) flags |= FIN_MASK;
+        if (str) flags |= STR_MASK;
+        if (beg) flags |= BEG_MASK;
+        if (end) flags |= END_MASK;
+        return flags;
+    }
+
+    /**
+     * Sets the flags of this frame from a flags byte written by {@code flags}.
+     */
+    void setFlags(byte flags) {
+        syn = (flags & SYN_MASK) != 0;
+        ack = (flags & ACK_MASK) != 0;
+        fin = (flags & FIN_MASK) != 0;
+        str = (flags & STR_MASK) != 0;
+        beg = (flags & BEG_MASK) != 0;
+        end = (flags & END_MASK) != 0;
+    }
+
+    /**
+     * @return the length of this frame's header on the wire
+     */
+    int headerLength() {
+        return beg ? BEG_HEADER_LENGTH : HEADER_LENGTH;
+    }
+
+    int payloadLength() {
+        return payload.remaining();
+    }
+
+    /**
+     * @return a copy of the payload
+     */
+    byte[] payloadBytes() {
+        byte[] bytes = new byte[payloadLength()];
+        payload.duplicate().get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Computes the payload checksum, which is the same as {@code Arrays.hashCode} of the payload bytes.
+     *
+     * @return the payload checksum
+     */
+    int payloadChecksum() {
+        int checksum = 1;
+        for (int i = payload.position(); i < payload.limit(); i++) {
+            checksum = 31 * checksum + payload.get(i);
+        }
+        return checksum;
+    }
+
+    /**
+     * @return {@code true} if this frame takes up a sequence number, i.e. it is not a bare acknowledgement
+     */
+    boolean isSequenced() {
+        return syn || fin || payloadLength() > 0;
+    }
+
+    /**
+     * @return a copy of this frame that shares no mutable state with it
+     */
+    Frame copy() {
+        Frame copy = new Frame(new Address(source.host, source.port), new Address(dest.host, dest.port), seq,
+                syn, ack, fin, beg, end, protocol, payloadBytes());
+        copy.str = str;
+        copy.ackSeq = ackSeq;
+        copy.sack = sack;
+        copy.window = window;
+        copy.messageLength = messageLength;
+        copy.isCorrupt = isCorrupt;
+        return copy;
     }
 
     @Override
     public String toString() {
-        String header = "source=" + source + "  dest=" + dest + "  seq=" + seq + "  flags=";
+        return headerString() + "  payload (" + payloadLength() + " bytes): "
+                + new String(payloadBytes()).replaceAll("\r\n|\n", "");
+    }
+
+    /**
+     * @return the header fields of this frame, as printed by {@code toString}
+     */
+    String headerString() {
+        String header = "source=" + source + "  dest=" + dest + "  seq=" + (seq & 0xFFFF) + "  flags=";
         if (ack) {
             header += "|ACK|";
         } else {
@@ -52,6 +242,11 @@ public class Frame {
         } else {
             header += "   |";
         }
+        if (str) {
+            header += "STR|";
+        } else {
+            header += "   |";
+        }
         if (beg) {
             header += "BEG|";
         } else {
@@ -62,6 +257,9 @@ public class Frame {
         } else {
             header += "   |";
         }
-        return header + "  payload (" + payload.length + " bytes): " + new String(payload).replaceAll("\r\n|\n", "");
+        if (ack) {
+            header += "  ack=" + (ackSeq & 0xFFFF) + "  sack=" + Integer.toBinaryString(sack) + "  window=" + window;
+        }
+        return header;
     }
 }
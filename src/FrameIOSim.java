@@ -1,69 +1,312 @@
-import java.util.LinkedList;
-import java.util.List;
+import java.util.PriorityQueue;
 import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
+ * Simulated {@code FrameIO} for testing protocols without audio hardware.
+ * <p>
+ * Frames take {@code latency} plus their airtime at {@code bitRate} to arrive, and frames sent back to back
+ * queue behind each other on the link. Frames can be lost independently with probability {@code lossRate},
+ * and in bursts using a Gilbert-Elliott model (see {@code setBurstLoss}).
+ * All randomness comes from a seeded generator, so a simulation is reproducible.
+ * <p>
+ * By default a simulator loops frames back to itself. Use {@code connect} to link two simulators.
+ * With a virtual clock (see {@code Clock}), nothing waits for real time to pass: once every thread of the hosts
+ * on the link is waiting, for a frame to arrive, a frame to finish its airtime, or a timer, the clock jumps to the
+ * first of those times. Create the hosts with {@code getClock}, so that their timers and round trip times run on
+ * the same clock, and protocols can be exercised at thousands of frames per second.
+ * <p>
+ * The simulator senses the carrier: the channel is busy while a frame from the peer is on the air at this end.
+ * With {@code setSharedMedium}, the link behaves like a room both hosts talk into: a frame sent while
+ * a frame from the peer is on the air at this end collides with it, and both are lost.
+ *
  * @author Oliver on 3/13/2018
  */
-public class FrameIOSim implements FrameIO {
-    private static final long delay = 5;
-    private static final double chanceOfSuccess = 0.5;
+public class FrameIOSim implements FrameIO, CarrierSense {
+    // preamble + SoF, header checksum, payload checksum, inter-frame gap
+    private static final int FRAME_OVERHEAD_BYTES = 8 + 4 + 4 + 2;
 
-    private static final Random RNG = new Random();
+    private final Random rng;
+    private final long latency;  // nanoseconds
+    private final long bitRate;  // bits per second, or 0 for unlimited bandwidth
+    private final double lossRate;
 
-    List<Frame> inBuffer = new LinkedList<>();
+    // Gilbert-Elliott burst loss. The link switches between a good and a bad state before each frame.
+    private double goodToBad = 0;
+    private double badToGood = 1;
+    private double badLossRate = 0;
+    private boolean isBad = false;
 
+    private boolean isSharedMedium = false;
+
+    private FrameIOSim peer = this;
+    // Shared with the peer. Its lock guards the state of both simulators.
+    private volatile Clock clock = new Clock(false);
+    private long linkFreeAt = Long.MIN_VALUE;  // time at which the last frame sent finishes its airtime
+
+    private final PriorityQueue<InFlightFrame> inFlight = new PriorityQueue<>();
+    private long framesQueued = 0;
+
+    private volatile long framesSent = 0;
+    private volatile long framesLost = 0;
+    private volatile long collisions = 0;
+
+    /**
+     * Creates a lossless simulator with no latency and unlimited bandwidth.
+     */
     public FrameIOSim() {
+        this(0, 0, 0, 0);
+    }
+
+    /**
+     * @param seed     seed for the loss model
+     * @param latency  propagation delay added to every frame, in milliseconds
+     * @param bitRate  link bit rate used to derive frame airtime, in bits per second. 0 for unlimited
+     * @param lossRate probability that a frame is lost independently of the burst loss model
+     */
+    public FrameIOSim(long seed, long latency, long bitRate, double lossRate) {
+        this.rng = new Random(seed);
+        this.latency = TimeUnit.MILLISECONDS.toNanos(latency);
+        this.bitRate = bitRate;
+        this.lossRate = lossRate;
     }
 
     public static void main(String[] args) {
-        FrameIOSim frameIO = new FrameIOSim();
-
-//        Frame testFrame = new Frame((byte) 0, (byte) 1, (byte) 0, false, false, false, (byte) 0, new byte[]{0});
-//
-//        (new Thread(new Runnable() {
-//            @Override
-//            public void run() {
-//                while (true) {
-//                    System.out.println(frameIO.decode());
-//                }
-//            }
-//        })).start();
-//
-//        while (true) {
-//            Scanner scanner = new Scanner(System.in);
-//            String message = scanner.nextLine();
-//            frameIO.encode(new Frame((byte) 0, (byte) 1, (byte) 0, false, false, false, (byte) 0, message.getBytes()));
-//            System.out.println(frameIO.inBuffer.size());
-//        }
+        FrameIOSim a = new FrameIOSim(0, 20, 5512, 0.1);
+        FrameIOSim b = new FrameIOSim(1, 20, 5512, 0.1);
+        a.setBurstLoss(0.01, 0.3, 0.8);
+        a.useVirtualClock();
+        connect(a, b);
+
+        long start = System.nanoTime();
+        int nFrames = 100000;
+        for (int i = 0; i < nFrames; i++) {
+            a.encode(new Frame(new Address(0, 0), new Address(1, 0), (short) i,
+                    false, false, false, true, true, Frame.PROTOCOL_CONNECTION, new byte[32]));
+        }
+        long received = nFrames - a.getFramesLost();
+        for (long i = 0; i < received; i++) {
+            b.decode();
+        }
+        System.out.printf("%d frames sent, %d lost, %.1f s simulated in %d ms\n", nFrames, a.getFramesLost(),
+                b.currentTimeNanos() / 1e9, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    /**
+     * Links the two simulators so that frames encoded by one are decoded by the other.
+     * The simulators share the clock of {@code a}. Call before either is in use.
+     */
+    public static void connect(FrameIOSim a, FrameIOSim b) {
+        a.peer = b;
+        b.peer = a;
+        b.clock = a.clock;
+    }
+
+    /**
+     * Enables Gilbert-Elliott burst loss. Before each frame the link moves from the good to the bad state
+     * with probability {@code goodToBad}, and back with probability {@code badToGood}.
+     * Frames sent in the bad state are lost with probability {@code badLossRate}.
+     */
+    public void setBurstLoss(double goodToBad, double badToGood, double badLossRate) {
+        this.goodToBad = goodToBad;
+        this.badToGood = badToGood;
+        this.badLossRate = badLossRate;
+    }
+
+    /**
+     * Makes frames sent by this simulator collide with frames from the peer that are on the air at the same time.
+     * Call on both simulators of a connected pair for collisions to be detected whichever side sends second.
+     */
+    public void setSharedMedium(boolean isSharedMedium) {
+        this.isSharedMedium = isSharedMedium;
+    }
+
+    /**
+     * Switches this simulator, and any simulator connected to it, to a virtual clock starting at 0.
+     * Call before either is in use, and before {@code getClock}.
+     */
+    public void useVirtualClock() {
+        Clock clock = new Clock(true);
+        this.clock = clock;
+        peer.clock = clock;
+    }
+
+    /**
+     * @return the clock of this simulator and its peer, to create the hosts that use them on
+     */
+    public Clock getClock() {
+        return clock;
+    }
+
+    /**
+     * @return the current time of this simulator's clock, in nanoseconds
+     */
+    public long currentTimeNanos() {
+        return clock.nanoTime();
+    }
+
+    public long getFramesSent() {
+        return framesSent;
+    }
+
+    public long getFramesLost() {
+        return framesLost;
+    }
+
+    /**
+     * @return the number of frames sent by this simulator that collided with a frame from the peer
+     */
+    public long getCollisions() {
+        return collisions;
+    }
+
+    /**
+     * @return {@code true} while a frame from the peer is on the air at this end
+     */
+    @Override
+    public boolean isChannelBusy() {
+        ReentrantLock lock = clock.lock;
+        lock.lock();
+        try {
+            long now = clock.nanoTime();
+            for (InFlightFrame frame : inFlight) {
+                if (!frame.isCollided && frame.airStart - now <= 0 && now - frame.arrival < 0) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
     }
 
+    /**
+     * Puts the given frame on the link towards the peer. The frame becomes available to the peer's
+     * {@code decode} once its latency and airtime have elapsed.
+     * Like real audio output, blocks until the frame's airtime is over, on the simulator's clock.
+     *
+     * @param frame the frame to encode
+     */
     @Override
     public void encode(Frame frame) {
+        Clock clock = this.clock;
+        long transmitted;
+        clock.lock.lock();
         try {
-            Thread.sleep(delay);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+            framesSent++;
+            long now = clock.nanoTime();
+            long start = linkFreeAt == Long.MIN_VALUE ? now : Math.max(now, linkFreeAt);
+            linkFreeAt = start + airtime(frame);
+            transmitted = linkFreeAt;
+
+            isBad = isBad ? rng.nextDouble() >= badToGood : rng.nextDouble() < goodToBad;
+            boolean isLost = rng.nextDouble() < lossRate || (isBad && rng.nextDouble() < badLossRate);
+            if (isLost) {
+                framesLost++;
+            }
+            if (isSharedMedium && collide(start, transmitted)) {
+                collisions++;
+                isLost = true;
+            }
+            if (!isLost) {
+                peer.deliver(frame.copy(), start + latency, transmitted + latency);
+            }
+        } finally {
+            clock.lock.unlock();
         }
-        if (RNG.nextDouble() < chanceOfSuccess) {
-            inBuffer.add(frame);
+        try {
+            clock.sleep(transmitted - clock.nanoTime());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
+    /**
+     * Returns the next frame to arrive from the peer.
+     * Blocks until a frame has arrived, on the simulator's clock.
+     *
+     * @return the next frame, or {@code null} if interrupted, in which case the interrupt status is set
+     */
     @Override
     public Frame decode() {
-        while (true) {
-            try {
-                Thread.sleep(delay);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-            if (inBuffer.size() >= 1) {
-                Frame incomingFrame = inBuffer.remove(0);
-                if (RNG.nextDouble() < chanceOfSuccess) {
-                    return incomingFrame;
+        Clock clock = this.clock;
+        clock.lock.lock();
+        try {
+            while (true) {
+                InFlightFrame next = inFlight.peek();
+                if (next == null) {
+                    clock.awaitUntil(Clock.FOREVER);
+                } else if (next.arrival - clock.nanoTime() > 0) {
+                    clock.awaitUntil(next.arrival);
+                } else {
+                    inFlight.poll();
+                    if (!next.isCollided) {
+                        return next.frame;
+                    }
                 }
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            clock.lock.unlock();
+        }
+    }
+
+    /**
+     * Marks every frame from the peer that is on the air at this end during {@code [start, end)} as lost.
+     * Must be called while holding the clock's lock.
+     *
+     * @return {@code true} if there was any such frame
+     */
+    private boolean collide(long start, long end) {
+        boolean isCollision = false;
+        for (InFlightFrame frame : inFlight) {
+            if (frame.airStart - end < 0 && start - frame.arrival < 0) {
+                frame.isCollided = true;
+                isCollision = true;
+            }
+        }
+        return isCollision;
+    }
+
+    /**
+     * Must be called while holding the clock's lock.
+     */
+    private void deliver(Frame frame, long airStart, long arrival) {
+        inFlight.add(new InFlightFrame(frame, airStart, arrival, framesQueued++));
+        clock.signalAll();
+    }
+
+    private long airtime(Frame frame) {
+        if (bitRate == 0) {
+            return 0;
+        }
+        long bits = 8L * (FRAME_OVERHEAD_BYTES + frame.headerLength() + frame.payloadLength());
+        return TimeUnit.SECONDS.toNanos(bits) / bitRate;
+    }
+
+    private static class InFlightFrame implements Comparable<InFlightFrame> {
+        final Frame frame;
+        final long airStart;  // when the frame starts arriving
+        final long arrival;  // when the frame has fully arrived
+        final long order;  // keeps frames with equal arrival times in send order
+        boolean isCollided = false;
+
+        InFlightFrame(Frame frame, long airStart, long arrival, long order) {
+            this.frame = frame;
+            this.airStart = airStart;
+            this.arrival = arrival;
+            this.order = order;
+        }
+
+        @Override
+        public int compareTo(InFlightFrame other) {
+            if (arrival != other.arrival) {
+                return Long.compare(arrival - other.arrival, 0);
+            }
+            return Long.compare(order, other.order);
         }
     }
 }
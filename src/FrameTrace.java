@@ -0,0 +1,235 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Records what connections do with frames as fixed-size binary events, in place of printing every frame.
+ * Enabled on a host with {@code ConnectionHost.setTrace}; when no trace is set, tracing costs one volatile read.
+ * <p>
+ * Events are written into a preallocated ring of {@code capacity} records by any number of threads, without
+ * locking or allocating. A background thread drains the ring to a trace file. If the ring is full, new events are
+ * dropped, and counted in the {@code trace.dropped} metric, so a slow disk never holds up the sender or receiver.
+ * Run {@code main} with the trace file to print it.
+ * <p>
+ * Trace file format (big-endian):
+ * <pre>
+ * file header | magic "AFTR" (4) | version (2)
+ * record      | timestamp (8) | event (1) | flags (1) | protocol (1) | unused (1) | source (2) | dest (2) |
+ *             | seq (2) | ack_seq (2) | sack (4) | window (2) | pay_length (2) | msg_length (4)
+ * </pre>
+ * Timestamps are nanoseconds since the epoch. The other fields are as in the frame's header.
+ */
+public class FrameTrace {
+    static final int MAGIC = 0x41465452;  // "AFTR"
+    static final short VERSION = 1;
+    static final int RECORD_LENGTH = 32;
+    static final int DEFAULT_CAPACITY = 8192;  // records
+
+    static final byte SENT = 0;
+    static final byte RESENT = 1;
+    static final byte RECEIVED = 2;
+    static final byte IGNORED = 3;
+    private static final String[] EVENT_NAMES = {"sent", "resent", "received", "ignored"};
+
+    private static final int BATCH_SIZE = 64 * 1024;  // bytes written to the file at a time
+    private static final long DRAIN_INTERVAL = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final ByteBuffer ring;
+    private final int mask;
+    // Producers claim record numbers from next. Record n goes in slot n & mask, and published[slot] is set to n + 1
+    // once it has been written. The drain thread has consumed every record before consumed.
+    private final AtomicLong next = new AtomicLong();
+    private final AtomicLongArray published;
+    private volatile long consumed = 0;
+
+    private final FileChannel channel;
+    private final ByteBuffer batch = ByteBuffer.allocateDirect(BATCH_SIZE);
+    private final Thread drainer;
+    private volatile boolean isClosed = false;
+    private final Metrics.Counter dropped = Metrics.getDefault().counter("trace.dropped");
+
+    // Timestamps are taken with nanoTime and anchored to the wall clock once.
+    private final long epochOffset =
+            TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis()) - System.nanoTime();
+
+    public FrameTrace(Path file) throws IOException {
+        this(file, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates the trace file, replacing any existing file, and starts the drain thread.
+     *
+     * @param file     the trace file
+     * @param capacity the number of records the ring holds. Rounded up to a power of 2.
+     * @throws IOException if the trace file cannot be created
+     */
+    public FrameTrace(Path file, int capacity) throws IOException {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        ring = ByteBuffer.allocateDirect(size * RECORD_LENGTH);
+        mask = size - 1;
+        published = new AtomicLongArray(size);
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        batch.putInt(MAGIC);
+        batch.putShort(VERSION);
+
+        drainer = IOExecutors.threadFactory("trace", false).newThread(this::drain);
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    /**
+     * Prints every record in the given trace file.
+     */
+    public static void main(String[] args) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Channels.newInputStream(FileChannel.open(Paths.get(args[0])))))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(args[0] + " is not a frame trace");
+            }
+            short version = in.readShort();
+            if (version != VERSION) {
+                throw new IOException("Unsupported trace version " + version);
+            }
+            byte[] record = new byte[RECORD_LENGTH];
+            while (true) {
+                try {
+                    in.readFully(record);
+                } catch (EOFException e) {
+                    return;
+                }
+                System.out.println(render(ByteBuffer.wrap(record)));
+            }
+        }
+    }
+
+    /**
+     * Formats a record like the lines connections used to print for each frame.
+     */
+    static String render(ByteBuffer record) {
+        long timestamp = record.getLong();
+        byte event = record.get();
+        byte flags = record.get();
+        byte protocol = record.get();
+        record.get();
+        Address source = new Address(record.get(), record.get());
+        Address dest = new Address(record.get(), record.get());
+        Frame frame = new Frame(source, dest, record.getShort(), false, false, false, false, false, protocol);
+        frame.setFlags(flags);
+        frame.ackSeq = record.getShort();
+        frame.sack = record.getInt();
+        frame.window = record.getShort() & 0xFFFF;
+        int payloadLength = record.getShort() & 0xFFFF;
+        frame.messageLength = record.getInt();
+
+        String name = event >= 0 && event < EVENT_NAMES.length ? EVENT_NAMES[event] : "event " + event;
+        String line = String.format("%-45s", TimeUnit.NANOSECONDS.toMicros(timestamp) + " " + name + ": ");
+        line += frame.headerString() + "  payload (" + payloadLength + " bytes)";
+        if (frame.beg) {
+            line += "  message (" + frame.messageLength + " bytes)";
+        }
+        return line;
+    }
+
+    /**
+     * Records an event for the given frame. Never blocks. Safe to call from any thread.
+     *
+     * @param event one of {@code SENT}, {@code RESENT}, {@code RECEIVED} and {@code IGNORED}
+     * @param frame the frame
+     */
+    void record(byte event, Frame frame) {
+        long n;
+        do {
+            n = next.get();
+            if (n - consumed > mask || isClosed) {
+                dropped.increment();
+                return;
+            }
+        } while (!next.compareAndSet(n, n + 1));
+
+        int offset = (int) (n & mask) * RECORD_LENGTH;
+        ring.putLong(offset, epochOffset + System.nanoTime());
+        ring.put(offset + 8, event);
+        ring.put(offset + 9, frame.flags());
+        ring.put(offset + 10, frame.protocol);
+        ring.put(offset + 12, frame.source.host);
+        ring.put(offset + 13, frame.source.port);
+        ring.put(offset + 14, frame.dest.host);
+        ring.put(offset + 15, frame.dest.port);
+        ring.putShort(offset + 16, frame.seq);
+        ring.putShort(offset + 18, frame.ackSeq);
+        ring.putInt(offset + 20, frame.sack);
+        ring.putShort(offset + 24, (short) frame.window);
+        ring.putShort(offset + 26, (short) frame.payloadLength());
+        ring.putInt(offset + 28, frame.messageLength);
+        // Ordered after the writes above, so the drain thread never sees a partly written record.
+        published.lazySet((int) (n & mask), n + 1);
+    }
+
+    /**
+     * Stops recording, writes out every recorded event, and closes the trace file.
+     */
+    public void close() throws InterruptedException {
+        isClosed = true;
+        LockSupport.unpark(drainer);
+        drainer.join();
+    }
+
+    private void drain() {
+        try {
+            while (true) {
+                boolean isStopping = isClosed;
+                long position = consumed;
+                while (published.get((int) (position & mask)) == position + 1) {
+                    if (batch.remaining() < RECORD_LENGTH) {
+                        write();
+                    }
+                    int offset = (int) (position & mask) * RECORD_LENGTH;
+                    for (int i = 0; i < RECORD_LENGTH; i += 8) {
+                        batch.putLong(ring.getLong(offset + i));
+                    }
+                    position++;
+                    consumed = position;
+                }
+                write();
+                if (isStopping) {
+                    // Nothing can be claimed after isClosed was set, but records claimed before may still be
+                    // finishing, so one more pass follows isClosed being seen.
+                    if (position == next.get()) {
+                        break;
+                    }
+                    continue;
+                }
+                LockSupport.parkNanos(this, DRAIN_INTERVAL);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            isClosed = true;
+        } finally {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void write() throws IOException {
+        batch.flip();
+        while (batch.hasRemaining()) {
+            channel.write(batch);
+        }
+        batch.clear();
+    }
+}
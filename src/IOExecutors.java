@@ -0,0 +1,75 @@
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the executors that run the blocking loops of {@code ConnectionHost}, its timer wheel, and
+ * {@code FileTransferProtocol}.
+ * <p>
+ * On Java 21 and later, the loops can run on virtual threads, which park instead of tying up an OS thread while
+ * they wait for frames, messages or sleeps. One executor can then be shared by thousands of hosts and transfers
+ * written in a blocking style. On older Javas, platform threads are used instead. Virtual threads are looked up
+ * by reflection, so the code still builds and runs on Java 8.
+ * <p>
+ * Every task submitted to these executors stops when interrupted, so {@code shutdownNow} followed by
+ * {@code awaitTermination} stops everything that was started on an executor.
+ */
+public final class IOExecutors {
+    private IOExecutors() {
+    }
+
+    /**
+     * @return {@code true} if this Java supports virtual threads
+     */
+    public static boolean isVirtualThreadSupported() {
+        return virtualThreadFactory("probe") != null;
+    }
+
+    /**
+     * Returns an executor that runs every task on a new thread.
+     *
+     * @param name      prefix of the names of the threads
+     * @param isVirtual {@code true} to use virtual threads, if this Java supports them
+     * @return the executor
+     */
+    public static ExecutorService newExecutor(String name, boolean isVirtual) {
+        ThreadFactory threadFactory = threadFactory(name, isVirtual);
+        try {
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                    .invoke(null, threadFactory);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(threadFactory);
+        }
+    }
+
+    /**
+     * @param name      prefix of the names of the threads
+     * @param isVirtual {@code true} to create virtual threads, if this Java supports them
+     * @return a factory for threads named {@code name-1}, {@code name-2}, ...
+     */
+    public static ThreadFactory threadFactory(String name, boolean isVirtual) {
+        ThreadFactory virtual = isVirtual ? virtualThreadFactory(name) : null;
+        if (virtual != null) {
+            return virtual;
+        }
+        AtomicInteger count = new AtomicInteger();
+        return task -> new Thread(task, name + "-" + count.incrementAndGet());
+    }
+
+    /**
+     * @return {@code Thread.ofVirtual().name(name + "-", 1).factory()}, or {@code null} if virtual threads are
+     * not available
+     */
+    private static ThreadFactory virtualThreadFactory(String name) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-", 1L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // Before Java 21, or Java 19 and 20 without --enable-preview.
+            return null;
+        }
+    }
+}
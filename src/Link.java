@@ -0,0 +1,163 @@
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * One of the {@code FrameIO}s a {@code ConnectionHost} sends and receives frames through, such as one audio device,
+ * or one channel of a device.
+ * <p>
+ * Tracks the link's health and its measured rate. A link whose {@code FrameIO} throws {@code MAX_FAILURES} times in
+ * a row is down for {@code RETRY_INTERVAL}, during which the host sends nothing on it; after that, it is tried again,
+ * and goes back down after a single failure until a frame gets through. The rate is a moving average of the bytes
+ * per second that {@code encode} takes to send a frame: the link's bit rate, less framing and line coding overhead.
+ */
+class Link {
+    static final int MAX_FAILURES = 3;
+    static final long RETRY_INTERVAL = 1000;  // milliseconds
+    private static final double RATE_ALPHA = 0.125;
+
+    final int id;
+    final FrameIO frameIO;
+    private final Clock clock;
+    private volatile CarrierSense carrierSense;
+    private volatile CarrierSenseBackoff carrierSenseBackoff;
+    // A lock rather than a monitor, so that a virtual thread blocked in encode doesn't pin its carrier thread.
+    private final ReentrantLock transmitLock = new ReentrantLock();
+    private volatile boolean isSending = false;
+
+    // Set by the host while the link's sender is parked, waiting for frames to send.
+    volatile boolean isIdle = false;
+    volatile Thread sender;
+    Future<?> receiverTask;
+    Future<?> senderTask;
+
+    private volatile double rate = 0;  // bytes per second, or 0 until a frame has been sent
+    private int failures = 0;  // consecutive. Guarded by this.
+    private volatile long downUntil = 0;  // clock time
+
+    private final Metrics.Counter framesSent;
+    private final Metrics.Counter framesReceived;
+    private final Metrics.Counter linkFailures;
+
+    Link(ConnectionHost host, int id, FrameIO frameIO) {
+        this.id = id;
+        this.frameIO = frameIO;
+        this.clock = host.clock;
+        Metrics metrics = Metrics.getDefault();
+        String prefix = "host." + (host.localHost & 0xFF) + ".link." + id + ".";
+        framesSent = metrics.counter(prefix + "framesSent");
+        framesReceived = metrics.counter(prefix + "framesReceived");
+        linkFailures = metrics.counter(prefix + "failures");
+    }
+
+    void setCarrierSense(CarrierSense carrierSense, CarrierSenseBackoff backoff) {
+        this.carrierSenseBackoff = backoff;
+        this.carrierSense = carrierSense;
+    }
+
+    /**
+     * Transmits the given frame, first waiting for an idle channel if carrier sense is enabled.
+     *
+     * @param eachSlot run after every backoff slot spent waiting
+     * @return {@code false} if the frame could not be sent because the {@code FrameIO} failed
+     */
+    boolean contendAndTransmit(Frame frame, Runnable eachSlot) {
+        CarrierSense carrierSense = this.carrierSense;
+        if (carrierSense != null) {
+            try {
+                carrierSenseBackoff.awaitIdleChannel(carrierSense, eachSlot, clock);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return true;
+            }
+        }
+        return transmit(frame);
+    }
+
+    /**
+     * Writes the given frame to the {@code FrameIO}.
+     *
+     * @return {@code false} if the {@code FrameIO} failed
+     */
+    boolean transmit(Frame frame) {
+        transmitLock.lock();
+        try {
+            isSending = true;
+            long start = clock.nanoTime();
+            frameIO.encode(frame);
+            long elapsed = Math.max(1, clock.nanoTime() - start);
+            double frameRate = (frame.headerLength() + frame.payloadLength()) * 1e9 / elapsed;
+            rate = rate == 0 ? frameRate : rate + RATE_ALPHA * (frameRate - rate);
+            framesSent.increment();
+            recordSuccess();
+            return true;
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            recordFailure();
+            return false;
+        } finally {
+            isSending = false;
+            transmitLock.unlock();
+        }
+    }
+
+    /**
+     * Reads the next frame from the {@code FrameIO}.
+     *
+     * @return the frame, or {@code null} if there was none, or the {@code FrameIO} failed
+     */
+    Frame receive() {
+        try {
+            Frame frame = frameIO.decode();
+            if (frame != null) {
+                framesReceived.increment();
+                recordSuccess();
+            }
+            return frame;
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            recordFailure();
+            return null;
+        }
+    }
+
+    private synchronized void recordSuccess() {
+        failures = 0;
+        downUntil = 0;
+    }
+
+    private synchronized void recordFailure() {
+        linkFailures.increment();
+        failures++;
+        if (failures >= MAX_FAILURES) {
+            downUntil = clock.nanoTime() + TimeUnit.MILLISECONDS.toNanos(RETRY_INTERVAL);
+            // Back down after one more failure.
+            failures = MAX_FAILURES - 1;
+        }
+    }
+
+    boolean isUp() {
+        return downUntil == 0 || clock.nanoTime() - downUntil >= 0;
+    }
+
+    /**
+     * Sleeps until the link is no longer down.
+     */
+    void awaitUp() throws InterruptedException {
+        long wait;
+        while ((wait = downUntil - clock.nanoTime()) > 0 && downUntil != 0) {
+            clock.sleep(wait);
+        }
+    }
+
+    /**
+     * @return the measured rate, in bytes per second, or 0 if no frame has been sent yet
+     */
+    double getRate() {
+        return rate;
+    }
+
+    boolean isSending() {
+        return isSending;
+    }
+}
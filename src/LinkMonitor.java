@@ -0,0 +1,319 @@
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Measures the quality of the link to another host while it is in use, by sending it echo requests at a low rate.
+ * <p>
+ * Each probe carries a payload generated from its seq, so the payload of its echo reply is known in advance.
+ * Replies are matched to probes by seq, which gives the round trip time of each probe. Probes with no reply within
+ * the timeout are counted as lost. Replies whose payload failed its checksum are still passed on by the FrameIO,
+ * and the bits that differ from the known payload are counted, which gives the bit error rate of the reply leg.
+ * (Corrupt echo requests are dropped by the target host, so they show up as loss.)
+ * <p>
+ * Results are published to the {@code link.<host>-<target>.} metrics, and as a {@code Quality} summary of the last
+ * {@code WINDOW} probes, which is passed to listeners after every probe. From these, the codec's bit length,
+ * the MTU and the retransmission timeout can be tuned from live data: a high bit error rate calls for a longer
+ * bit length or shorter frames, and the timeout should sit above the 99th percentile round trip time.
+ */
+public class LinkMonitor {
+    static final long DEFAULT_INTERVAL = 1000;  // ms
+    static final int DEFAULT_PAYLOAD_LENGTH = 64;  // bytes
+    static final long DEFAULT_TIMEOUT = 3000;  // ms
+    static final int WINDOW = 256;  // probes
+
+    private static final byte OK = 0;
+    private static final byte CORRUPT = 1;
+    private static final byte LOST = 2;
+    // Probes awaiting a reply, in slot seq % SLOTS. Must be more than timeout / interval.
+    private static final int SLOTS = 1024;
+
+    private final ConnectionHost host;
+    private final byte targetHost;
+    private final long interval;
+    private final int payloadLength;
+    private final long timeout;
+    private final byte port;
+    private final List<Consumer<Quality>> listeners = new CopyOnWriteArrayList<>();
+    private Future<?> task;
+
+    // Guarded by this.
+    private int nextSeq = 0;
+    private final long[] sentAt = new long[SLOTS];
+    private final short[] slotSeqs = new short[SLOTS];
+    private final boolean[] isOutstanding = new boolean[SLOTS];
+    // Outcomes of the last WINDOW probes, in a ring. Entry count % WINDOW is written next.
+    private long count = 0;
+    private final byte[] outcomes = new byte[WINDOW];
+    private final long[] roundTripTimes = new long[WINDOW];
+    private final int[] bitErrors = new int[WINDOW];
+    private final int[] bits = new int[WINDOW];
+
+    private final Metrics.Counter probesSent;
+    private final Metrics.Counter repliesReceived;
+    private final Metrics.Counter repliesCorrupt;
+    private final Metrics.Counter probesLost;
+    private final Metrics.Counter bitErrorsReceived;
+    private final Metrics.Counter bitsReceived;
+    private final Metrics.Histogram rttNanos;
+
+    public LinkMonitor(ConnectionHost host, byte targetHost) {
+        this(host, targetHost, DEFAULT_INTERVAL, DEFAULT_PAYLOAD_LENGTH, DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * @param host          the host to send probes from
+     * @param targetHost    the host to probe
+     * @param interval      milliseconds between probes
+     * @param payloadLength bytes of known payload in each probe
+     * @param timeout       milliseconds after which a probe with no reply is counted as lost
+     */
+    public LinkMonitor(ConnectionHost host, byte targetHost, long interval, int payloadLength, long timeout) {
+        if (interval < 1 || timeout < 1 || timeout / interval >= SLOTS) {
+            throw new IllegalArgumentException("Need 0 < interval, and 0 < timeout < " + SLOTS + " intervals");
+        }
+        if (payloadLength < 1 || payloadLength > 0xFFFF) {
+            throw new IllegalArgumentException("Payload length must be from 1 to " + 0xFFFF);
+        }
+        this.host = host;
+        this.targetHost = targetHost;
+        this.interval = interval;
+        this.payloadLength = payloadLength;
+        this.timeout = timeout;
+
+        String prefix = "link." + (host.localHost & 0xFF) + "-" + (targetHost & 0xFF) + ".";
+        Metrics metrics = Metrics.getDefault();
+        probesSent = metrics.counter(prefix + "probesSent");
+        repliesReceived = metrics.counter(prefix + "repliesReceived");
+        repliesCorrupt = metrics.counter(prefix + "repliesCorrupt");
+        probesLost = metrics.counter(prefix + "probesLost");
+        bitErrorsReceived = metrics.counter(prefix + "bitErrors");
+        bitsReceived = metrics.counter(prefix + "bitsReceived");
+        rttNanos = metrics.histogram(prefix + "rttNanos");
+
+        port = host.addEchoClient(this::receive);
+    }
+
+    /**
+     * Starts probing on a daemon thread of its own.
+     */
+    public synchronized void start() {
+        FutureTask<?> probeTask = new FutureTask<>(this::run, null);
+        Thread thread = IOExecutors.threadFactory("monitor", false).newThread(probeTask);
+        thread.setDaemon(true);
+        thread.start();
+        task = probeTask;
+    }
+
+    /**
+     * Starts probing on the given executor.
+     */
+    public synchronized void start(ExecutorService executor) {
+        task = executor.submit(this::run);
+    }
+
+    /**
+     * Stops probing, and stops receiving replies.
+     */
+    public synchronized void close() {
+        if (task != null) {
+            task.cancel(true);
+        }
+        host.removeEchoClient(port);
+    }
+
+    /**
+     * @param listener called with the latest {@code Quality} after every probe, on the probing thread
+     */
+    public void addListener(Consumer<Quality> listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Consumer<Quality> listener) {
+        listeners.remove(listener);
+    }
+
+    private void run() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                sendProbe();
+                host.clock.sleep(TimeUnit.MILLISECONDS.toNanos(interval));
+                expireProbes();
+                Quality quality = getQuality();
+                for (Consumer<Quality> listener : listeners) {
+                    listener.accept(quality);
+                }
+            }
+        } catch (InterruptedException e) {
+            // closed
+        }
+    }
+
+    private void sendProbe() {
+        short seq;
+        synchronized (this) {
+            seq = (short) nextSeq++;
+            int slot = (seq & 0xFFFF) % SLOTS;
+            if (isOutstanding[slot]) {
+                addOutcome(LOST, 0, 0, 0);
+            }
+            slotSeqs[slot] = seq;
+            isOutstanding[slot] = true;
+            sentAt[slot] = host.clock.nanoTime();
+        }
+        Frame probe = new Frame(new Address(host.localHost, port), new Address(targetHost, 0), seq,
+                false, false, false, false, false, Frame.PROTOCOL_PING, pattern(seq, payloadLength));
+        probesSent.increment();
+        host.queueControlFrame(probe);
+    }
+
+    private synchronized void expireProbes() {
+        long now = host.clock.nanoTime();
+        long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+        for (int slot = 0; slot < SLOTS; slot++) {
+            if (isOutstanding[slot] && now - sentAt[slot] > timeoutNanos) {
+                isOutstanding[slot] = false;
+                addOutcome(LOST, 0, 0, 0);
+            }
+        }
+    }
+
+    /**
+     * Receives an echo reply from the host, on its receiver thread.
+     */
+    private void receive(Frame reply) {
+        long now = host.clock.nanoTime();
+        int slot = (reply.seq & 0xFFFF) % SLOTS;
+        int errors = 0;
+        int replyBits = 8 * reply.payloadLength();
+        if (reply.isCorrupt) {
+            byte[] expected = pattern(reply.seq, payloadLength);
+            byte[] received = reply.payloadBytes();
+            for (int i = 0; i < received.length; i++) {
+                errors += Integer.bitCount((received[i] ^ (i < expected.length ? expected[i] : 0)) & 0xFF);
+            }
+        }
+        long roundTripTime;
+        synchronized (this) {
+            if (!isOutstanding[slot] || slotSeqs[slot] != reply.seq) {
+                // A duplicate, or a reply that came after its probe was counted as lost.
+                return;
+            }
+            isOutstanding[slot] = false;
+            roundTripTime = now - sentAt[slot];
+            addOutcome(reply.isCorrupt ? CORRUPT : OK, roundTripTime, errors, replyBits);
+        }
+        repliesReceived.increment();
+        if (reply.isCorrupt) {
+            repliesCorrupt.increment();
+        }
+        bitErrorsReceived.add(errors);
+        bitsReceived.add(replyBits);
+        rttNanos.record(roundTripTime);
+    }
+
+    private void addOutcome(byte outcome, long roundTripTime, int errors, int replyBits) {
+        int i = (int) (count++ % WINDOW);
+        outcomes[i] = outcome;
+        roundTripTimes[i] = roundTripTime;
+        bitErrors[i] = errors;
+        bits[i] = replyBits;
+        if (outcome == LOST) {
+            probesLost.increment();
+        }
+    }
+
+    /**
+     * @return a summary of the last {@code WINDOW} probes whose outcome is known
+     */
+    public synchronized Quality getQuality() {
+        int probes = (int) Math.min(count, WINDOW);
+        long[] replyTimes = new long[probes];
+        int replies = 0;
+        int lost = 0;
+        int corrupt = 0;
+        long errorTotal = 0;
+        long bitTotal = 0;
+        for (int i = 0; i < probes; i++) {
+            if (outcomes[i] == LOST) {
+                lost++;
+                continue;
+            }
+            if (outcomes[i] == CORRUPT) {
+                corrupt++;
+            }
+            replyTimes[replies++] = roundTripTimes[i];
+            errorTotal += bitErrors[i];
+            bitTotal += bits[i];
+        }
+        replyTimes = Arrays.copyOf(replyTimes, replies);
+        Arrays.sort(replyTimes);
+        return new Quality(probes, lost, corrupt, errorTotal, bitTotal, replyTimes);
+    }
+
+    /**
+     * The known payload of the probe with the given seq: a xorshift sequence seeded from the seq, so that
+     * neighbouring probes, and neighbouring bytes, differ in many bits.
+     */
+    static byte[] pattern(short seq, int length) {
+        byte[] pattern = new byte[length];
+        int x = (seq & 0xFFFF) * 0x9E3779B9 | 1;
+        for (int i = 0; i < length; i++) {
+            x ^= x << 13;
+            x ^= x >>> 17;
+            x ^= x << 5;
+            pattern[i] = (byte) x;
+        }
+        return pattern;
+    }
+
+    /**
+     * Link quality over a window of probes. Round trip times are in nanoseconds, and are exact percentiles of
+     * the probes that were replied to, or 0 if none were.
+     */
+    public static class Quality {
+        final int probes;
+        final double lossRate;
+        final double corruptRate;
+        final double bitErrorRate;
+        final long rttMin;
+        final long rttP50;
+        final long rttP90;
+        final long rttP99;
+        final long rttMax;
+
+        Quality(int probes, int lost, int corrupt, long bitErrors, long bits, long[] sortedRoundTripTimes) {
+            this.probes = probes;
+            int replies = probes - lost;
+            lossRate = probes == 0 ? 0 : (double) lost / probes;
+            corruptRate = replies == 0 ? 0 : (double) corrupt / replies;
+            bitErrorRate = bits == 0 ? 0 : (double) bitErrors / bits;
+            rttMin = percentile(sortedRoundTripTimes, 0);
+            rttP50 = percentile(sortedRoundTripTimes, 0.5);
+            rttP90 = percentile(sortedRoundTripTimes, 0.9);
+            rttP99 = percentile(sortedRoundTripTimes, 0.99);
+            rttMax = percentile(sortedRoundTripTimes, 1);
+        }
+
+        private static long percentile(long[] sorted, double fraction) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            int rank = (int) Math.ceil(fraction * sorted.length);
+            return sorted[Math.max(0, rank - 1)];
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d probes, %.2f%% loss, %.2f%% corrupt, BER %.2e, " +
+                            "RTT min/p50/p90/p99/max %.3f/%.3f/%.3f/%.3f/%.3f ms",
+                    probes, 100 * lossRate, 100 * corruptRate, bitErrorRate,
+                    rttMin / 1e6, rttP50 / 1e6, rttP90 / 1e6, rttP99 / 1e6, rttMax / 1e6);
+        }
+    }
+}
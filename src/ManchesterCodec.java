@@ -17,6 +17,9 @@ public class ManchesterCodec implements LineCodec {
     private AudioIO audioIO;
 
     private int bitLength;
+    private int threshold;  // sample level at or above which the signal is considered high
+    // Samples after a bit transition from which the next transition is a bit transition rather than a mid-bit one.
+    private int bitTransitionThreshold;
 
     // These waveforms will be written to the output stream for logical zeros and ones.
     private byte[] upLong;
@@ -28,9 +31,43 @@ public class ManchesterCodec implements LineCodec {
     private boolean prevSymbol = false;  // Initial value is arbitrary. Used for encoding. Logical bit is 2 symbols.
     private int samplesSinceLastTransition = 0;
 
+    private final Metrics.Counter samplesProcessed;
+    // Bit transitions that came more than 5/4 of a bit length after the previous one, meaning that a transition
+    // was missed or the clocks have drifted. Gaps of 4 bit lengths or more are silence between frames.
+    private final Metrics.Counter bitSlips;
+
     public ManchesterCodec(int bitLength, AudioIO audioIO) {
+        this(bitLength, audioIO, 0, 0);
+    }
+
+    /**
+     * Creates a codec whose decoder is biased by the given phase offset and threshold.
+     * Useful for running several decoders with slightly different assumptions over the same input.
+     * <p>
+     * The phase offset moves the boundary between mid-bit and bit transitions, which is normally 3/4 of a bit length
+     * after the last bit transition, and applies to every bit decoded. A negative offset expects bit transitions
+     * early, and a positive one late, as when the received waveform is skewed or its clock runs fast or slow.
+     *
+     * @param bitLength   the duration of one logical bit, in samples
+     * @param audioIO     the audio stream to read from and write to
+     * @param phaseOffset samples to move the boundary between mid-bit and bit transitions by. It must stay within
+     *                    the bit, and should stay after its middle.
+     * @param threshold   sample level at or above which the signal is considered high
+     */
+    public ManchesterCodec(int bitLength, AudioIO audioIO, int phaseOffset, int threshold) {
         this.bitLength = bitLength;
         this.audioIO = audioIO;
+        this.bitTransitionThreshold = bitLength * 3 / 4 + phaseOffset;
+        this.threshold = threshold;
+        if (bitTransitionThreshold < 1 || bitTransitionThreshold > bitLength) {
+            throw new IllegalArgumentException("Phase offset " + phaseOffset + " is out of range for bit length "
+                    + bitLength);
+        }
+
+        Metrics metrics = Metrics.getDefault();
+        String prefix = metrics.instanceName("codec") + ".";
+        samplesProcessed = metrics.counter(prefix + "samplesProcessed");
+        bitSlips = metrics.counter(prefix + "bitSlips");
 
         upLong = roundedHalfSquareWave(bitLength * 2, false);
         upShort = roundedHalfSquareWave(bitLength, false);
@@ -124,10 +161,11 @@ public class ManchesterCodec implements LineCodec {
      * transitions in the input stream, as well as the bit length set.
      * <p>
      * Transitions in the audio are ignored if the previous transition took place less than 3/4
-     * of a bit length. Transitions which take place after 3/4 of a bit length are interpreted as
+     * of a bit length (moved by the phase offset) ago. Transitions which take place after that are interpreted as
      * logical bits.
      * <p>
-     * **IMPORTANT** This method will BLOCK until the next logical bit has been decoded.
+     * **IMPORTANT** This method will BLOCK until the next logical bit has been decoded, or the thread is
+     * interrupted, in which case it returns an arbitrary bit with the interrupt status set.
      *
      * @return the decoded logical bit
      */
@@ -137,19 +175,28 @@ public class ManchesterCodec implements LineCodec {
         // is considered a logical bit transistion.
         // Any transition that happens before this time
         // is considered a 'mid-bit' transition and ignored.
-        int bitTransitionThres = bitLength * 3 / 4;
+        int bitTransitionThres = bitTransitionThreshold;
 
-        while (true) {
-            boolean sample = audioIO.readSample() >= 0;
+        // Counted locally and reported once per bit.
+        int samples = 0;
+        while (!Thread.currentThread().isInterrupted()) {
+            boolean sample = audioIO.readSample() >= threshold;
+            samples++;
             if (sample != prevSample) {
                 if (samplesSinceLastTransition >= bitTransitionThres) {
+                    if (samplesSinceLastTransition > bitLength * 5 / 4 && samplesSinceLastTransition < bitLength * 4) {
+                        bitSlips.increment();
+                    }
                     samplesSinceLastTransition = 0;
+                    samplesProcessed.add(samples);
                     return sample;
                 }
                 prevSample = sample;
             }
             samplesSinceLastTransition++;
         }
+        samplesProcessed.add(samples);
+        return false;
     }
 
     /**
@@ -0,0 +1,248 @@
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Registry of named counters and histograms, read with {@code snapshot} or through JMX, where the default registry
+ * is registered as {@code audio-networking:type=Metrics} with one read-only attribute per value.
+ * <p>
+ * Components look up their metrics once, when they are created, and keep them in fields. Updating a metric is then
+ * lock-free and allocation-free: counters are {@code LongAdder}s, and histograms count values in power-of-2 buckets
+ * of an {@code AtomicLongArray}.
+ * <p>
+ * Names are dot-separated, starting with the kind of component and its name, e.g. {@code connection.A.framesSent}.
+ * Metrics that measure time have their unit at the end of the name.
+ */
+public class Metrics implements DynamicMBean {
+    static final String OBJECT_NAME = "audio-networking:type=Metrics";
+    private static final Metrics DEFAULT = new Metrics();
+
+    static {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(DEFAULT, new ObjectName(OBJECT_NAME));
+        } catch (JMException | RuntimeException e) {
+            // JMX is unavailable or the name is taken. The metrics can still be read with snapshot.
+            e.printStackTrace();
+        }
+    }
+
+    private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+    private final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private final Map<String, AtomicInteger> instances = new ConcurrentHashMap<>();
+
+    /**
+     * @return the registry that components report to
+     */
+    public static Metrics getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * @return the counter with the given name, created at 0 if there is none
+     */
+    public Counter counter(String name) {
+        return counters.computeIfAbsent(name, key -> new Counter());
+    }
+
+    /**
+     * @return the histogram with the given name, created empty if there is none
+     */
+    public Histogram histogram(String name) {
+        return histograms.computeIfAbsent(name, key -> new Histogram());
+    }
+
+    /**
+     * Removes every counter and histogram whose name starts with the given prefix, such as the metrics of a
+     * component that has gone away. The component can still update them, but they are no longer reported.
+     *
+     * @param prefix the start of the names, e.g. {@code connection.A.}
+     */
+    public void remove(String prefix) {
+        counters.keySet().removeIf(name -> name.startsWith(prefix));
+        histograms.keySet().removeIf(name -> name.startsWith(prefix));
+    }
+
+    /**
+     * Names an instance of a component that has no name of its own, such as a codec.
+     *
+     * @param kind the kind of component
+     * @return {@code kind.0} for the first instance of {@code kind}, {@code kind.1} for the second, and so on
+     */
+    String instanceName(String kind) {
+        return kind + "." + instances.computeIfAbsent(kind, key -> new AtomicInteger()).getAndIncrement();
+    }
+
+    /**
+     * Reads every metric. Counters appear under their own names. Histograms appear as {@code name.count},
+     * {@code name.mean}, {@code name.p50}, {@code name.p90}, {@code name.p99} and {@code name.max}, where the
+     * percentiles are the upper bounds of the power-of-2 buckets they fall in.
+     *
+     * @return the current values by name, in name order
+     */
+    public SortedMap<String, Long> snapshot() {
+        SortedMap<String, Long> snapshot = new TreeMap<>();
+        for (Map.Entry<String, Counter> counter : counters.entrySet()) {
+            snapshot.put(counter.getKey(), counter.getValue().get());
+        }
+        for (Map.Entry<String, Histogram> histogram : histograms.entrySet()) {
+            histogram.getValue().putSummary(histogram.getKey(), snapshot);
+        }
+        return snapshot;
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Long value = snapshot().get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        SortedMap<String, Long> snapshot = snapshot();
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            Long value = snapshot.get(attribute);
+            if (value != null) {
+                list.add(new Attribute(attribute, value));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        SortedMap<String, Long> snapshot = snapshot();
+        MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[snapshot.size()];
+        int i = 0;
+        for (String name : snapshot.keySet()) {
+            attributes[i++] = new MBeanAttributeInfo(name, "long", name, true, false, false);
+        }
+        return new MBeanInfo(getClass().getName(), "Link and protocol metrics", attributes,
+                null, new MBeanOperationInfo[0], null);
+    }
+
+    /**
+     * A count of events.
+     */
+    public static class Counter {
+        private final LongAdder count = new LongAdder();
+
+        public void increment() {
+            count.increment();
+        }
+
+        public void add(long n) {
+            count.add(n);
+        }
+
+        public long get() {
+            return count.sum();
+        }
+    }
+
+    /**
+     * Distribution of non-negative values, such as durations. Bucket 0 counts zeros, and bucket {@code i} counts
+     * values in {@code [2^(i-1), 2^i)}.
+     */
+    public static class Histogram {
+        private static final int BUCKETS = 64;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        /**
+         * @param value the value to record. Negative values are recorded as 0.
+         */
+        public void record(long value) {
+            value = Math.max(0, value);
+            buckets.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value)));
+            sum.add(value);
+            long previous;
+            while (value > (previous = max.get()) && !max.compareAndSet(previous, value)) {
+                // retry
+            }
+        }
+
+        /**
+         * @return the number of values recorded
+         */
+        public long count() {
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                count += buckets.get(i);
+            }
+            return count;
+        }
+
+        /**
+         * @param fraction between 0 and 1, e.g. 0.99 for the 99th percentile
+         * @return the upper bound of the bucket the percentile falls in, or 0 if nothing was recorded
+         */
+        public long percentile(double fraction) {
+            long[] counts = new long[BUCKETS];
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets.get(i);
+                count += counts[i];
+            }
+            long rank = (long) Math.ceil(fraction * count);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank && counts[i] > 0) {
+                    return i == 0 ? 0 : Math.min(max.get(), (1L << i) - 1);
+                }
+            }
+            return 0;
+        }
+
+        public long max() {
+            return max.get();
+        }
+
+        private void putSummary(String name, SortedMap<String, Long> snapshot) {
+            long count = count();
+            snapshot.put(name + ".count", count);
+            snapshot.put(name + ".mean", count == 0 ? 0 : sum.sum() / count);
+            snapshot.put(name + ".p50", percentile(0.5));
+            snapshot.put(name + ".p90", percentile(0.9));
+            snapshot.put(name + ".p99", percentile(0.99));
+            snapshot.put(name + ".max", max());
+        }
+    }
+}
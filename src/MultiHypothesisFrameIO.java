@@ -0,0 +1,291 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Receive mode that decodes the same input stream with several {@code ManchesterCodec} hypotheses in parallel.
+ * Each hypothesis uses its own bit length, phase offset and threshold, so a frame that is lost by one decoder
+ * because of a timing slip can still be recovered by another.
+ * <p>
+ * Samples are read by a single fan-out thread and handed to every hypothesis, which decode on a worker pool.
+ * A hypothesis that falls too far behind loses chunks of samples, but keeps track of the position of its samples
+ * in the input stream, so that copies of a frame are still recognized as such. The first copy of a frame that passes its checksums is returned by {@code decode}. Copies of the same frame
+ * decoded by other hypotheses from the same stretch of audio are dropped.
+ * <p>
+ * Encoding is delegated to an ordinary single-hypothesis {@code FrameIO}.
+ */
+public class MultiHypothesisFrameIO implements FrameIO {
+    private static final int CHUNK_SIZE = 256;  // samples handed to the hypotheses at a time
+    private static final int MAX_QUEUED_CHUNKS = 1024;  // per hypothesis, before it starts dropping samples
+    private static final int PREAMBLE_BITS = 64;
+
+    private final AudioIO audioIO;
+    private final FrameIO encoder;
+    private final List<HypothesisAudioIO> inputs = new ArrayList<>();
+    private final ExecutorService workers;
+    private final BlockingQueue<Frame> decodedFrames = new LinkedBlockingQueue<>();
+
+    // Two decoded frames with identical contents that end within this many samples of each other must
+    // come from the same transmission, because a retransmission is always preceded by a full preamble.
+    private final long duplicateWindow;
+    private final LinkedList<DecodedFrame> recentFrames = new LinkedList<>();
+
+    private final Thread fanOut;
+
+    /**
+     * Creates a receive mode with a default spread of hypotheses around {@code bitLength}.
+     * Frames are encoded with a plain {@code ManchesterCodec} of the given bit length.
+     *
+     * @param audioIO   the audio stream to read from and write to
+     * @param bitLength the nominal duration of one logical bit, in samples
+     */
+    public MultiHypothesisFrameIO(AudioIO audioIO, int bitLength) {
+        this(audioIO, new RealTimeFrameIO(new ManchesterCodec(bitLength, audioIO), audioIO),
+                defaultHypotheses(bitLength));
+    }
+
+    /**
+     * @param audioIO    the audio stream to read samples from. Only the fan-out thread reads from it.
+     * @param encoder    the frame IO used to encode outbound frames
+     * @param hypotheses the decoder parameters to run in parallel
+     */
+    public MultiHypothesisFrameIO(AudioIO audioIO, FrameIO encoder, List<Hypothesis> hypotheses) {
+        if (hypotheses.isEmpty()) {
+            throw new IllegalArgumentException("At least one hypothesis is required");
+        }
+        this.audioIO = audioIO;
+        this.encoder = encoder;
+
+        int maxBitLength = 0;
+        for (Hypothesis hypothesis : hypotheses) {
+            inputs.add(new HypothesisAudioIO());
+            maxBitLength = Math.max(maxBitLength, hypothesis.bitLength);
+        }
+        duplicateWindow = (long) PREAMBLE_BITS * maxBitLength;
+
+        workers = Executors.newFixedThreadPool(hypotheses.size());
+        for (int i = 0; i < hypotheses.size(); i++) {
+            Hypothesis hypothesis = hypotheses.get(i);
+            HypothesisAudioIO input = inputs.get(i);
+            LineCodec codec = new ManchesterCodec(hypothesis.bitLength, input,
+                    hypothesis.phaseOffset, hypothesis.threshold);
+            FrameIO decoder = new RealTimeFrameIO(codec, input);
+            workers.submit(() -> {
+                try {
+                    while (!Thread.currentThread().isInterrupted()) {
+                        Frame frame = decoder.decode();
+                        if (frame != null) {
+                            emit(frame, input.position);
+                        }
+                    }
+                } catch (CancellationException e) {
+                    // shut down while waiting for samples
+                }
+            });
+        }
+        fanOut = new Thread(() -> {
+            long position = 0;
+            while (!Thread.currentThread().isInterrupted()) {
+                Chunk chunk = new Chunk(position, audioIO.readSamples(CHUNK_SIZE));
+                position += CHUNK_SIZE;
+                for (HypothesisAudioIO input : inputs) {
+                    // A hypothesis that can't keep up loses samples and will resynchronize on the next preamble.
+                    input.chunks.offer(chunk);
+                }
+            }
+        });
+        fanOut.setDaemon(true);
+        fanOut.start();
+    }
+
+    /**
+     * Returns the nominal hypothesis, hypotheses for bit lengths one sample either side of {@code bitLength} and
+     * the nominal one, each expecting bit transitions early and late where that still fits in the bit, and the
+     * nominal bit length at a raised and lowered threshold.
+     *
+     * @param bitLength the nominal duration of one logical bit, in samples
+     * @return the default hypotheses
+     */
+    public static List<Hypothesis> defaultHypotheses(int bitLength) {
+        List<Hypothesis> hypotheses = new ArrayList<>();
+        hypotheses.add(new Hypothesis(bitLength, 0, 0));
+        for (int length = Math.max(2, bitLength - 1); length <= bitLength + 1; length++) {
+            int skew = Math.max(1, length / 8);
+            for (int phaseOffset : new int[]{-skew, skew}) {
+                int bitTransitionThreshold = length * 3 / 4 + phaseOffset;
+                if (bitTransitionThreshold > length / 2 && bitTransitionThreshold <= length) {
+                    hypotheses.add(new Hypothesis(length, phaseOffset, 0));
+                }
+            }
+        }
+        hypotheses.add(new Hypothesis(bitLength, 0, 4));
+        hypotheses.add(new Hypothesis(bitLength, 0, -4));
+        return hypotheses;
+    }
+
+    @Override
+    public void encode(Frame frame) {
+        encoder.encode(frame);
+    }
+
+    /**
+     * Returns the next frame decoded by any hypothesis. Duplicates decoded by other hypotheses are dropped.
+     * Blocks until the next valid frame is decoded, or the thread is interrupted.
+     *
+     * @return the next valid frame, or {@code null} if interrupted, in which case the interrupt status is set
+     */
+    @Override
+    public Frame decode() {
+        try {
+            return decodedFrames.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * Stops the fan-out thread and all decoders.
+     */
+    public void close() {
+        fanOut.interrupt();
+        workers.shutdownNow();
+    }
+
+    /**
+     * Queues the given frame for {@code decode}, unless a copy of it from the same transmission was already queued.
+     *
+     * @param frame     the decoded frame
+     * @param endSample the input sample position at which the frame finished decoding
+     */
+    private synchronized void emit(Frame frame, long endSample) {
+        if (frame.isCorrupt) {
+            // Another hypothesis may well decode the same frame intact.
+            return;
+        }
+        // Once every hypothesis has moved past a frame, none of them can decode another copy of it.
+        long slowestPosition = Long.MAX_VALUE;
+        for (HypothesisAudioIO input : inputs) {
+            slowestPosition = Math.min(slowestPosition, input.position);
+        }
+        Iterator<DecodedFrame> iterator = recentFrames.iterator();
+        while (iterator.hasNext()) {
+            DecodedFrame recent = iterator.next();
+            if (slowestPosition - recent.endSample > duplicateWindow) {
+                iterator.remove();
+            } else if (Math.abs(endSample - recent.endSample) <= duplicateWindow && sameContents(frame, recent.frame)) {
+                return;
+            }
+        }
+        recentFrames.add(new DecodedFrame(frame, endSample));
+        decodedFrames.add(frame);
+    }
+
+    private static boolean sameContents(Frame a, Frame b) {
+        return a.source.equals(b.source) && a.dest.equals(b.dest) && a.seq == b.seq &&
+                a.ackSeq == b.ackSeq && a.sack == b.sack && a.window == b.window &&
+                a.syn == b.syn && a.ack == b.ack && a.fin == b.fin && a.beg == b.beg && a.end == b.end &&
+                a.protocol == b.protocol && a.messageLength == b.messageLength && a.payload.equals(b.payload);
+    }
+
+    /**
+     * Parameters of one decoder.
+     */
+    public static class Hypothesis {
+        final int bitLength;
+        final int phaseOffset;
+        final int threshold;
+
+        /**
+         * @param bitLength   the duration of one logical bit, in samples
+         * @param phaseOffset samples to move the boundary between mid-bit and bit transitions by, from 3/4 of a
+         *                    bit length after the last bit transition
+         * @param threshold   sample level at or above which the signal is considered high
+         */
+        public Hypothesis(int bitLength, int phaseOffset, int threshold) {
+            this.bitLength = bitLength;
+            this.phaseOffset = phaseOffset;
+            this.threshold = threshold;
+        }
+
+        @Override
+        public String toString() {
+            return "bitLength=" + bitLength + " phaseOffset=" + phaseOffset + " threshold=" + threshold;
+        }
+    }
+
+    private static class DecodedFrame {
+        final Frame frame;
+        final long endSample;
+
+        DecodedFrame(Frame frame, long endSample) {
+            this.frame = frame;
+            this.endSample = endSample;
+        }
+    }
+
+    /**
+     * Samples read by the fan-out thread, and the position of the first of them in the input stream.
+     */
+    private static class Chunk {
+        final long start;
+        final byte[] samples;
+
+        Chunk(long start, byte[] samples) {
+            this.start = start;
+            this.samples = samples;
+        }
+    }
+
+    /**
+     * Read-only audio stream fed with the chunks read by the fan-out thread.
+     * Keeps track of the input stream position of the samples its decoder has consumed, which skips ahead
+     * over chunks that were dropped.
+     */
+    private static class HypothesisAudioIO implements AudioIO {
+        final BlockingQueue<Chunk> chunks = new ArrayBlockingQueue<>(MAX_QUEUED_CHUNKS);
+        volatile long position = 0;
+        private Chunk chunk = new Chunk(0, new byte[0]);
+        private int index = 0;
+
+        @Override
+        public byte readSample() {
+            if (index == chunk.samples.length) {
+                try {
+                    chunk = chunks.take();
+                } catch (InterruptedException e) {
+                    throw new CancellationException("decoder interrupted");
+                }
+                index = 0;
+            }
+            position = chunk.start + index + 1;
+            return chunk.samples[index++];
+        }
+
+        @Override
+        public byte[] readSamples(int n) {
+            byte[] samples = new byte[n];
+            for (int i = 0; i < n; i++) {
+                samples[i] = readSample();
+            }
+            return samples;
+        }
+
+        @Override
+        public void writeSample(byte sample) {
+            throw new UnsupportedOperationException("Hypothesis decoders are read-only");
+        }
+
+        @Override
+        public void writeSamples(byte[] samples) {
+            throw new UnsupportedOperationException("Hypothesis decoders are read-only");
+        }
+    }
+}
@@ -0,0 +1,439 @@
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Reliable, message-oriented multicast: each message is transmitted once, and reaches every host listening on the
+ * channel's group address, so airtime does not grow with the number of receivers.
+ * <p>
+ * Reliability is NACK-based. Receivers don't acknowledge what they receive; instead, a receiver that sees a gap in
+ * a sender's seqs asks for the missing frames with a NACK, after a random delay. NACKs are sent to the group, so
+ * the other receivers hear them, and a receiver missing the same frames holds back its own NACK, which keeps the
+ * number of NACKs low however many receivers lost a frame. The sender keeps its last {@code HISTORY} frames, and
+ * multicasts each requested frame once, however many NACKs ask for it.
+ * <p>
+ * A receiver only notices a gap once a later frame arrives, so after each message the sender multicasts a few
+ * heartbeats, which carry the seq its next frame will have. A receiver that joins late starts from the first
+ * message it receives a frame of: every data frame carries the seq of its message's first frame. Frames that can't
+ * be recovered after {@code MAX_NACKS} NACKs, such as frames that have left the sender's history, are given up on,
+ * and the messages they belong to are lost.
+ * <p>
+ * Frame format ({@code PROTOCOL_MULTICAST}, sent from port {@code p} of the sender to port {@code p} of the group):
+ * <pre>
+ * data      | seq, BEG and END as for connections, and the message length in BEG frames.
+ *           | ack_seq is the seq of the message's BEG frame
+ * heartbeat | FIN, no payload. seq is the seq of the sender's next frame
+ * NACK      | ACK. Asks for frame ack_seq, and frame ack_seq + 1 + i for each bit i set in sack.
+ *           | The payload is the host and port of the sender the NACK is for
+ * </pre>
+ */
+public class MulticastChannel {
+    private static final int MAX_FRAME_SIZE = 256;  // bytes
+    // Frames the sender keeps for repair, and the receiver buffers beyond the next expected one.
+    static final int HISTORY = 1024;  // frames
+    // Frames queued for transmission at once, so that a large message doesn't fill the host's queue.
+    private static final int MAX_QUEUED = 32;  // frames
+    static final long HEARTBEAT_INTERVAL = 300;  // milliseconds
+    private static final int HEARTBEATS = 3;
+    static final long NACK_BACKOFF = 100;  // milliseconds, the longest random delay before a NACK
+    static final long NACK_RETRY = 1000;  // milliseconds
+    static final int MAX_NACKS = 10;
+    // A frame is repaired at most once in this time, however many NACKs ask for it.
+    private static final long REPAIR_HOLDOFF = 200;  // milliseconds
+
+    final Address source;
+    final Address group;
+    private final ConnectionHost host;
+    private final Random random = new Random();
+    private final Semaphore queueSpace = new Semaphore(MAX_QUEUED);
+    // Held by send for a whole message, so that the frames of messages sent concurrently don't interleave.
+    // A lock rather than a monitor, so that a virtual thread waiting for queue space doesn't pin its carrier thread.
+    private final ReentrantLock sendLock = new ReentrantLock();
+    private final LinkedBlockingQueue<Message> inMessages = new LinkedBlockingQueue<>();
+
+    // Send side. Guarded by this.
+    private short nextSeq = 0;
+    private final Frame[] history = new Frame[HISTORY];
+    private final long[] repairedAt = new long[HISTORY];
+    private int heartbeatsLeft = 0;
+    private TimerWheel.Timeout heartbeatTimeout;
+    private boolean isClosed = false;
+
+    // Receive side, by sender. Guarded by this.
+    private final Map<Address, Peer> peers = new HashMap<>();
+
+    private final Metrics.Counter framesSent;
+    private final Metrics.Counter repairsSent;
+    private final Metrics.Counter nacksSent;
+    private final Metrics.Counter nacksSuppressed;
+    private final Metrics.Counter framesLost;
+
+    /**
+     * Joins the host to the group, and starts receiving messages sent to the group address.
+     *
+     * @param host  the host to send and receive from
+     * @param group a group address, or the broadcast host, and the port the channel uses on every host
+     * @throws IllegalArgumentException if {@code group} is not a multicast address
+     * @throws IllegalStateException    if another channel of the host uses the same address
+     */
+    public MulticastChannel(ConnectionHost host, Address group) {
+        if (!group.isMulticast()) {
+            throw new IllegalArgumentException("Not a multicast address: " + group);
+        }
+        this.host = host;
+        this.group = group;
+        this.source = new Address(host.localHost, group.port);
+
+        Metrics metrics = Metrics.getDefault();
+        String prefix = "multicast." + (source.host & 0xFF) + "-" + (group.host & 0xFF) + "." + (group.port & 0xFF)
+                + ".";
+        framesSent = metrics.counter(prefix + "framesSent");
+        repairsSent = metrics.counter(prefix + "repairsSent");
+        nacksSent = metrics.counter(prefix + "nacksSent");
+        nacksSuppressed = metrics.counter(prefix + "nacksSuppressed");
+        framesLost = metrics.counter(prefix + "framesLost");
+
+        host.addMulticastClient(group, this::receive);
+        if (group.host != Address.BROADCAST_HOST) {
+            host.joinGroup(group.host);
+        }
+    }
+
+    private static int seqDiff(short a, short b) {
+        return (short) (a - b);
+    }
+
+    private static int slot(short seq) {
+        return (seq & 0xFFFF) % HISTORY;
+    }
+
+    /**
+     * Multicasts the given message, blocking while earlier frames are still waiting to be transmitted.
+     * Messages sent concurrently are sent one after the other.
+     * The message is not copied: it must not be modified after it has been sent.
+     *
+     * @param message the message
+     * @throws InterruptedException if interrupted while waiting
+     * @throws IllegalArgumentException if the message is longer than {@code Connection.MAX_MESSAGE_SIZE}
+     */
+    public void send(byte[] message) throws InterruptedException {
+        Connection.checkMessageLength(message.length);
+        ByteBuffer remaining = ByteBuffer.wrap(message).asReadOnlyBuffer();
+        boolean isFirst = true;
+        short first = 0;
+        sendLock.lockInterruptibly();
+        try {
+            do {
+                int length = Math.min(MAX_FRAME_SIZE, remaining.remaining());
+                ByteBuffer payload = remaining.slice();
+                payload.limit(length);
+                remaining.position(remaining.position() + length);
+
+                queueSpace.acquire();
+                Frame frame;
+                synchronized (this) {
+                    frame = new Frame(source, group, nextSeq, false, false, false, isFirst, !remaining.hasRemaining(),
+                            Frame.PROTOCOL_MULTICAST, payload);
+                    frame.messageLength = message.length;
+                    if (isFirst) {
+                        first = nextSeq;
+                    }
+                    frame.ackSeq = first;
+                    history[slot(nextSeq)] = frame;
+                    repairedAt[slot(nextSeq)] = 0;
+                    nextSeq++;
+                }
+                framesSent.increment();
+                host.queueDatagram(frame, queueSpace::release);
+                isFirst = false;
+            } while (remaining.hasRemaining());
+        } finally {
+            sendLock.unlock();
+        }
+
+        synchronized (this) {
+            heartbeatsLeft = HEARTBEATS;
+            if (heartbeatTimeout == null) {
+                heartbeatTimeout = host.timerWheel.schedule(this::sendHeartbeat, HEARTBEAT_INTERVAL);
+            }
+        }
+    }
+
+    private synchronized void sendHeartbeat() {
+        heartbeatTimeout = null;
+        if (heartbeatsLeft <= 0) {
+            return;
+        }
+        heartbeatsLeft--;
+        host.queueDatagram(new Frame(source, group, nextSeq, false, false, true, false, false,
+                Frame.PROTOCOL_MULTICAST), null);
+        heartbeatTimeout = host.timerWheel.schedule(this::sendHeartbeat, HEARTBEAT_INTERVAL);
+    }
+
+    /**
+     * Takes the next message received from any sender, blocking until one arrives.
+     *
+     * @return the message, or {@code null} if interrupted
+     */
+    public Message getMessage() {
+        try {
+            return inMessages.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * Stops receiving, and leaves the group. Frames already queued are still sent, but are no longer repaired.
+     */
+    public synchronized void close() {
+        if (isClosed) {
+            return;
+        }
+        isClosed = true;
+        host.removeMulticastClient(group);
+        if (group.host != Address.BROADCAST_HOST) {
+            host.leaveGroup(group.host);
+        }
+        if (heartbeatTimeout != null) {
+            heartbeatTimeout.cancel();
+            heartbeatTimeout = null;
+        }
+        for (Peer peer : peers.values()) {
+            peer.cancelNack();
+        }
+    }
+
+    /**
+     * Receives a frame sent to the group. Only called from the host's receiver thread.
+     */
+    private synchronized void receive(Frame frame) {
+        if (frame.source.equals(source)) {
+            return;
+        }
+        if (frame.ack) {
+            receiveNack(frame);
+            return;
+        }
+        Peer peer = peers.get(frame.source);
+        if (peer == null) {
+            peer = new Peer(frame.source);
+            peers.put(frame.source, peer);
+        }
+        peer.receive(frame);
+    }
+
+    private void receiveNack(Frame nack) {
+        if (nack.payloadLength() < 2) {
+            return;
+        }
+        ByteBuffer payload = nack.payload.duplicate();
+        Address target = new Address(payload.get(), payload.get());
+        if (target.equals(source)) {
+            repair(nack.ackSeq);
+            for (int i = 0; i < 32; i++) {
+                if ((nack.sack & (1 << i)) != 0) {
+                    repair((short) (nack.ackSeq + 1 + i));
+                }
+            }
+        } else {
+            Peer peer = peers.get(target);
+            if (peer != null) {
+                peer.overhearNack(nack);
+            }
+        }
+    }
+
+    /**
+     * Multicasts the given frame again, if it is still in the history and wasn't just repaired.
+     */
+    private void repair(short seq) {
+        int age = seqDiff(nextSeq, seq);
+        Frame frame = history[slot(seq)];
+        long now = host.clock.nanoTime();
+        if (age <= 0 || age > HISTORY || frame == null || frame.seq != seq
+                || (repairedAt[slot(seq)] != 0
+                    && now - repairedAt[slot(seq)] < TimeUnit.MILLISECONDS.toNanos(REPAIR_HOLDOFF))) {
+            return;
+        }
+        repairedAt[slot(seq)] = now;
+        repairsSent.increment();
+        host.queueDatagram(frame, null);
+    }
+
+    /**
+     * A message received from a sender in the group.
+     */
+    public static class Message {
+        final Address source;
+        final byte[] data;
+
+        Message(Address source, byte[] data) {
+            this.source = source;
+            this.data = data;
+        }
+
+        public Address getSource() {
+            return source;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+    }
+
+    /**
+     * What this host has received from one sender. Guarded by the channel.
+     */
+    private class Peer {
+        final Address address;
+        // Frames in [expected, highest) have been sent. Those received are held in window until all frames
+        // before them have arrived. Set by the first frame received.
+        boolean isSynced = false;
+        short expected;
+        short highest;
+        final Frame[] window = new Frame[HISTORY];
+
+        byte[] inMessage;
+        int inMessageLength;
+
+        TimerWheel.Timeout nackTimeout;
+        int nacks = 0;
+
+        Peer(Address address) {
+            this.address = address;
+        }
+
+        void receive(Frame frame) {
+            if (!isSynced) {
+                // Start from the beginning of the message, or from the next frame after a heartbeat.
+                expected = frame.fin ? frame.seq : frame.ackSeq;
+                highest = expected;
+                isSynced = true;
+            }
+            if (frame.fin) {
+                if (seqDiff(frame.seq, highest) > 0) {
+                    highest = frame.seq;
+                }
+            } else {
+                int offset = seqDiff(frame.seq, expected);
+                if (offset < 0 || offset >= HISTORY) {
+                    return;
+                }
+                window[slot(frame.seq)] = frame;
+                if (seqDiff((short) (frame.seq + 1), highest) > 0) {
+                    highest = (short) (frame.seq + 1);
+                }
+                deliver();
+            }
+            checkGap();
+        }
+
+        /**
+         * Passes on the frames received in order.
+         */
+        private void deliver() {
+            Frame frame;
+            while ((frame = window[slot(expected)]) != null) {
+                window[slot(expected)] = null;
+                expected++;
+                nacks = 0;
+                if (frame.beg) {
+                    // The length comes off the wire: check it before allocating.
+                    boolean isValid = frame.messageLength >= frame.payloadLength()
+                            && frame.messageLength <= Connection.MAX_MESSAGE_SIZE;
+                    inMessage = isValid ? new byte[frame.messageLength] : null;
+                    inMessageLength = 0;
+                }
+                if (inMessage == null || inMessageLength + frame.payloadLength() > inMessage.length) {
+                    // The start of this message was given up on, or it is invalid.
+                    inMessage = null;
+                    continue;
+                }
+                frame.payload.duplicate().get(inMessage, inMessageLength, frame.payloadLength());
+                inMessageLength += frame.payloadLength();
+                if (frame.end) {
+                    inMessages.add(new Message(address, inMessage));
+                    inMessage = null;
+                }
+            }
+        }
+
+        /**
+         * Schedules a NACK, after a random delay, if frames are missing, and cancels it if none are.
+         */
+        private void checkGap() {
+            if (seqDiff(highest, expected) <= 0) {
+                cancelNack();
+            } else if (nackTimeout == null) {
+                nackTimeout = host.timerWheel.schedule(this::sendNack, random.nextInt((int) NACK_BACKOFF + 1));
+            }
+        }
+
+        void cancelNack() {
+            if (nackTimeout != null) {
+                nackTimeout.cancel();
+                nackTimeout = null;
+            }
+        }
+
+        private void sendNack() {
+            synchronized (MulticastChannel.this) {
+                nackTimeout = null;
+                if (seqDiff(highest, expected) <= 0) {
+                    return;
+                }
+                if (nacks >= MAX_NACKS) {
+                    giveUp();
+                    return;
+                }
+                nacks++;
+                int sack = 0;
+                for (int i = 0; i < 32 && seqDiff((short) (expected + 1 + i), highest) < 0; i++) {
+                    if (window[slot((short) (expected + 1 + i))] == null) {
+                        sack |= 1 << i;
+                    }
+                }
+                Frame nack = new Frame(source, group, (short) 0, false, true, false, false, false,
+                        Frame.PROTOCOL_MULTICAST, new byte[]{address.host, address.port});
+                nack.ackSeq = expected;
+                nack.sack = sack;
+                nacksSent.increment();
+                host.queueDatagram(nack, null);
+                nackTimeout = host.timerWheel.schedule(this::sendNack, NACK_RETRY);
+            }
+        }
+
+        /**
+         * Another receiver asked for frames from this peer. If it asked for the first frame this host is missing,
+         * the repair will reach this host too, so this host's NACK is held back.
+         */
+        void overhearNack(Frame nack) {
+            if (nackTimeout != null && nack.ackSeq == expected) {
+                nackTimeout.cancel();
+                nacksSuppressed.increment();
+                nackTimeout = host.timerWheel.schedule(this::sendNack, NACK_RETRY);
+            }
+        }
+
+        /**
+         * Skips past the first missing frame, to the next frame received, and drops the message it belonged to.
+         */
+        private void giveUp() {
+            nacks = 0;
+            inMessage = null;
+            do {
+                framesLost.increment();
+                expected++;
+            } while (window[slot(expected)] == null && seqDiff(highest, expected) > 0);
+            deliver();
+            checkGap();
+        }
+    }
+}
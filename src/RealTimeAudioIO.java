@@ -23,6 +23,8 @@ public class RealTimeAudioIO implements AudioIO {
     private TargetDataLine inputLine;
     private ByteBuffer inputByteBuffer;
     private ByteBuffer outputByteBuffer;
+    // Times the input line's buffer was found full, so that samples recorded since were lost.
+    private final Metrics.Counter inputOverruns = Metrics.getDefault().counter("audio.inputOverruns");
 
     /**
      * Initializes the input/output streams.
@@ -80,6 +82,9 @@ public class RealTimeAudioIO implements AudioIO {
         if (!inputByteBuffer.hasRemaining()) {
             // buffer needs to be refilled from the input line.
             inputByteBuffer.flip();
+            if (inputLine.available() >= inputLine.getBufferSize()) {
+                inputOverruns.increment();
+            }
             byte[] samplesFromInputLine = new byte[inputByteBuffer.capacity()];
             inputLine.read(samplesFromInputLine, 0, inputByteBuffer.capacity());
             inputByteBuffer.put(samplesFromInputLine);
@@ -132,16 +137,6 @@ public class RealTimeAudioIO implements AudioIO {
         inputLine.stop();
     }
 
-    public void startOutput() {
-        outputLine.start();
-    }
-
-    public void stopOutput() {
-        outputLine.drain();
-        outputLine.flush();
-        outputLine.stop();
-    }
-
     /**
      * Re-initializes and opens all the IO streams.
      * Only need to call this method if you called close and need to re-open.
@@ -7,20 +7,40 @@ import java.util.Arrays;
 class RealTimeFrameIO implements FrameIO {
     private static final byte[] PREAMBLE =
             ByteBuffer.allocate(8).putLong(0b01010101_01010101_01010101_01010101_01010101_01010101_01010101_11010101L).array();
-    private static final int SYN_MASK = 0b00000001;
-    private static final int ACK_MASK = 0b00000010;
-    private static final int FIN_MASK = 0b00000100;
-    private static final int BEG_MASK = 0b00010000;
-    private static final int END_MASK = 0b00100000;
 
     private static final int maxFrameLength = 32767;  // max value of short
 
     private LineCodec lineCodec;
-    private RealTimeAudioIO audioIO;
+    private AudioIO audioIO;
+
+    // Preambles followed by a start of frame delimiter, and preambles that weren't.
+    private final Metrics.Counter preambleHits;
+    private final Metrics.Counter preambleMisses;
+    private final Metrics.Counter headerChecksumFailures;
+    private final Metrics.Counter payloadChecksumFailures;
+    private final Metrics.Counter framesEncoded;
+    private final Metrics.Counter framesDecoded;
 
     public RealTimeFrameIO(LineCodec lineCodec) {
+        this(lineCodec, RealTimeAudioIO.getInstance());
+    }
+
+    /**
+     * @param lineCodec the codec to encode and decode frame bits with
+     * @param audioIO   the audio stream that {@code lineCodec} writes to. Used to write inter-frame gaps.
+     */
+    public RealTimeFrameIO(LineCodec lineCodec, AudioIO audioIO) {
         this.lineCodec = lineCodec;
-        this.audioIO = RealTimeAudioIO.getInstance();
+        this.audioIO = audioIO;
+
+        Metrics metrics = Metrics.getDefault();
+        String prefix = metrics.instanceName("frameIO") + ".";
+        preambleHits = metrics.counter(prefix + "preambleHits");
+        preambleMisses = metrics.counter(prefix + "preambleMisses");
+        headerChecksumFailures = metrics.counter(prefix + "headerChecksumFailures");
+        payloadChecksumFailures = metrics.counter(prefix + "payloadChecksumFailures");
+        framesEncoded = metrics.counter(prefix + "framesEncoded");
+        framesDecoded = metrics.counter(prefix + "framesDecoded");
     }
 
     public static void main(String[] args) throws Exception {
@@ -60,66 +80,62 @@ class RealTimeFrameIO implements FrameIO {
     @Override
     public void encode(Frame frame) {
         // Frame format:
-        //                 | Header              | Flags *1 byte*      |                                  | payload optional        |
-        // preamble  + SoF | source | dest | seq | syn,ack,fin,beg pad | protocol | pay length | head chk | payload | pay chk | end |
-        // 8               | 2      | 2    | 1   | 1b  1b  1b  1b  pad | 1        | 2          | 4        | n       | 4       | 2   |
-        if (frame.payload.length > maxFrameLength) {
+        //                 | Header                                           | Flags *1 byte*              |                                                          | payload optional        |
+        // preamble  + SoF | source | dest | seq | ack seq | sack | window | syn,ack,fin,str,beg,end pad | protocol | pay length | msg length (beg only) | head chk | payload | pay chk | end |
+        // 8               | 2      | 2    | 2   | 2       | 4    | 2      | 1b  1b  1b  1b  1b  1b  pad | 1        | 2          | 4                     | 4        | n       | 4       | 2   |
+        if (frame.payloadLength() > maxFrameLength) {
             throw new IllegalArgumentException("Frame size exceeds " + maxFrameLength + " bytes");
         }
         lineCodec.encodeBytes(PREAMBLE);
-        ByteBuffer header = ByteBuffer.allocate(2 + 2 + 1 + 1 + 1 + 2);
-        header.put(frame.source.host);
-        header.put(frame.source.port);
-        header.put(frame.dest.host);
-        header.put(frame.dest.port);
-        header.put(frame.seq);
-
-        byte flags = 0;
-        if (frame.syn) flags |= SYN_MASK;
-        if (frame.ack) flags |= ACK_MASK;
-        if (frame.fin) flags |= FIN_MASK;
-        if (frame.beg) flags |= BEG_MASK;
-        if (frame.end) flags |= END_MASK;
-
-        header.put(flags);
-        header.put(frame.protocol);
-        header.putShort((short) frame.payload.length);
+        ByteBuffer header = ByteBuffer.allocate(frame.headerLength());
+        frame.putHeader(header);
 
         int headerChecksum = Arrays.hashCode(header.array());
-        int payloadChecksum = Arrays.hashCode(frame.payload);
+        int payloadChecksum = frame.payloadChecksum();
         header.flip();
 
         ByteBuffer frameBytes;
-        if (frame.payload.length > 0) {
+        if (frame.payloadLength() > 0) {
             // checksum hashes are 4 bytes long.
-            frameBytes = ByteBuffer.allocate(header.capacity() + 4 + frame.payload.length + 4);
+            frameBytes = ByteBuffer.allocate(header.capacity() + 4 + frame.payloadLength() + 4);
         } else {
             frameBytes = ByteBuffer.allocate(header.capacity() + 4);
         }
         frameBytes.put(header);
         frameBytes.putInt(headerChecksum);
-        if (frame.payload.length > 0) {
-            frameBytes.put(frame.payload);
+        if (frame.payloadLength() > 0) {
+            frameBytes.put(frame.payload.duplicate());
             frameBytes.putInt(payloadChecksum);
         }
         lineCodec.encodeBytes(frameBytes.array());
         lineCodec.encodeBytes(new byte[]{0, 0});
+        // Also pushes the end of the frame out of the audio output's buffer. The output line is left running, as
+        // stopping and restarting it would misalign an EchoCancellingAudioIO's reference.
         for (int i = 0; i < 64; i++) {
             audioIO.writeSample((byte) 0);
         }
+        framesEncoded.increment();
     }
 
+    /**
+     * Decodes the next valid frame. Blocks until one is decoded, or the thread is interrupted.
+     *
+     * @return the next valid frame, or {@code null} if interrupted, in which case the interrupt status is set
+     */
     @Override
     public Frame decode() {
         // Frame format:
-        //                 | Header              | Flags *1 byte*      |                                  | payload optional        |
-        // preamble  + SoF | source | dest | seq | syn,ack,fin,beg pad | protocol | pay length | head chk | payload | pay chk | end |
-        // 8               | 2      | 2    | 1   | 1b  1b  1b  1b  pad | 1        | 2          | 4        | n       | 4       | 2   |
+        //                 | Header                                           | Flags *1 byte*              |                                                          | payload optional        |
+        // preamble  + SoF | source | dest | seq | ack seq | sack | window | syn,ack,fin,str,beg,end pad | protocol | pay length | msg length (beg only) | head chk | payload | pay chk | end |
+        // 8               | 2      | 2    | 2   | 2       | 4    | 2      | 1b  1b  1b  1b  1b  1b  pad | 1        | 2          | 4                     | 4        | n       | 4       | 2   |
         start:
         while (true) {
             int preambleBitsLeft = 32;
             boolean prevPreambleBit = false;
             while (preambleBitsLeft > 0) {
+                if (Thread.currentThread().isInterrupted()) {
+                    return null;
+                }
                 if (lineCodec.decodeBit() != prevPreambleBit) {
                     preambleBitsLeft--;
                     prevPreambleBit = !prevPreambleBit;
@@ -134,41 +150,46 @@ class RealTimeFrameIO implements FrameIO {
                 }
                 if (i == 63) {
 //                    throw new IllegalStateException("sof not detected");
+                    preambleMisses.increment();
                     continue start;
                 }
             }
+            preambleHits.increment();
 //            System.out.println("SOF found");
 
-            ByteBuffer header = ByteBuffer.wrap(lineCodec.decodeBytes(2 + 2 + 1 + 1 + 1 + 2));
+            byte[] headerBytes = lineCodec.decodeBytes(Frame.HEADER_LENGTH);
+            if (Frame.headerLength(headerBytes) > headerBytes.length) {
+                byte[] extension = lineCodec.decodeBytes(Frame.headerLength(headerBytes) - headerBytes.length);
+                headerBytes = Arrays.copyOf(headerBytes, headerBytes.length + extension.length);
+                System.arraycopy(extension, 0, headerBytes, Frame.HEADER_LENGTH, extension.length);
+            }
+            ByteBuffer header = ByteBuffer.wrap(headerBytes);
 //        System.out.println(Arrays.toString(header.array()));
-            Address source = new Address(header.get(), header.get());
-            Address dest = new Address(header.get(), header.get());
-            byte seq = header.get();
-            byte flags = header.get();
-            boolean syn = (flags & SYN_MASK) != 0;
-            boolean ack = (flags & ACK_MASK) != 0;
-            boolean fin = (flags & FIN_MASK) != 0;
-            boolean beg = (flags & BEG_MASK) != 0;
-            boolean end = (flags & END_MASK) != 0;
-            byte protocol = header.get();
-            short payloadLength = header.getShort();
-
             int headerChecksum = ByteBuffer.wrap(lineCodec.decodeBytes(4)).getInt();
+            if (Thread.currentThread().isInterrupted()) {
+                return null;
+            }
             if (Arrays.hashCode(header.array()) != headerChecksum) {
-                System.out.println("INVALID header checksum");
+                headerChecksumFailures.increment();
                 continue;
             }
-            if (payloadLength > 0) {
-                byte[] payload = lineCodec.decodeBytes(payloadLength);
+            Frame frame = Frame.getHeader(header);
+            if (frame.payloadLength() > 0) {
+                frame.payload = ByteBuffer.wrap(lineCodec.decodeBytes(frame.payloadLength()));
                 int payloadChecksum = ByteBuffer.wrap(lineCodec.decodeBytes(4)).getInt();
-                if (Arrays.hashCode(payload) != payloadChecksum) {
-                    System.out.println("INVALID payload checksum");
-                    continue;
+                if (Thread.currentThread().isInterrupted()) {
+                    return null;
+                }
+                if (frame.payloadChecksum() != payloadChecksum) {
+                    payloadChecksumFailures.increment();
+                    if (frame.protocol != Frame.PROTOCOL_PING) {
+                        continue;
+                    }
+                    frame.isCorrupt = true;
                 }
-                return new Frame(source, dest, seq, syn, ack, fin, beg, end, protocol, payload);
-            } else {
-                return new Frame(source, dest, seq, syn, ack, fin, beg, end, protocol);
             }
+            framesDecoded.increment();
+            return frame;
         }
     }
 }
@@ -0,0 +1,155 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@code FrameIO} that plays back a capture file written by {@code CaptureFrameIO}.
+ * <p>
+ * Frames that were decoded when the capture was made are returned by {@code decode}, spaced out as they were
+ * recorded divided by {@code speed}. A speed of 0 replays frames as fast as they are requested.
+ * Frames passed to {@code encode} are discarded, so a {@code ConnectionHost} can be run against a capture
+ * to reproduce how it reacted to the recorded traffic.
+ */
+public class ReplayFrameIO implements FrameIO {
+    private final DataInputStream in;
+    private final double speed;
+
+    private long firstTimestamp = -1;
+    private long replayStart;
+    private volatile boolean isFinished = false;
+    private volatile long framesEncoded = 0;
+
+    /**
+     * @param capture the capture file to replay
+     * @param speed   replay speed relative to the recorded pace, or 0 to replay without delays
+     * @throws IOException if the capture file cannot be opened or is not a capture file
+     */
+    public ReplayFrameIO(Path capture, double speed) throws IOException {
+        this.in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(FileChannel.open(capture))));
+        this.speed = speed;
+        if (in.readInt() != CaptureFrameIO.MAGIC) {
+            throw new IOException(capture + " is not a frame capture");
+        }
+        short version = in.readShort();
+        if (version != CaptureFrameIO.VERSION) {
+            throw new IOException("Unsupported capture version " + version);
+        }
+    }
+
+    /**
+     * Prints every record in the given capture file.
+     */
+    public static void main(String[] args) throws IOException {
+        ReplayFrameIO replay = new ReplayFrameIO(Paths.get(args[0]), 0);
+        while (true) {
+            Record record = replay.nextRecord();
+            if (record == null) {
+                return;
+            }
+            String direction = record.direction == CaptureFrameIO.DIRECTION_ENCODED ? "encoded: " : "decoded: ";
+            System.out.printf("%-30s", record.timestamp + " " + direction);
+            System.out.println(record.frame);
+        }
+    }
+
+    /**
+     * Discards the given frame.
+     *
+     * @param frame the frame to encode
+     */
+    @Override
+    public void encode(Frame frame) {
+        framesEncoded++;
+    }
+
+    /**
+     * Returns the next recorded inbound frame, once its recorded time relative to the first frame has come.
+     * Blocks indefinitely once the capture is exhausted.
+     *
+     * @return the next recorded frame
+     */
+    @Override
+    public synchronized Frame decode() {
+        try {
+            Record record;
+            do {
+                record = nextRecord();
+                if (record == null) {
+                    isFinished = true;
+                    while (true) {
+                        wait();
+                    }
+                }
+            } while (record.direction != CaptureFrameIO.DIRECTION_DECODED);
+
+            if (firstTimestamp < 0) {
+                firstTimestamp = record.timestamp;
+                replayStart = System.nanoTime();
+            }
+            if (speed > 0) {
+                long due = replayStart + (long) ((record.timestamp - firstTimestamp) / speed);
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+            }
+            return record.frame;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * @return {@code true} if every recorded frame has been replayed
+     */
+    public boolean isFinished() {
+        return isFinished;
+    }
+
+    public long getFramesEncoded() {
+        return framesEncoded;
+    }
+
+    /**
+     * @return the next record in the capture, or {@code null} at the end of the capture
+     */
+    private Record nextRecord() throws IOException {
+        long timestamp;
+        try {
+            timestamp = in.readLong();
+        } catch (EOFException e) {
+            return null;
+        }
+        byte direction = in.readByte();
+        byte[] frameBytes = new byte[in.readShort() & 0xFFFF];
+        in.readFully(frameBytes);
+
+        ByteBuffer buffer = ByteBuffer.wrap(frameBytes);
+        Frame frame = Frame.getHeader(buffer);
+        frame.payload = buffer.slice();
+        return new Record(timestamp, direction, frame);
+    }
+
+    private static class Record {
+        final long timestamp;
+        final byte direction;
+        final Frame frame;
+
+        Record(long timestamp, byte direction, Frame frame) {
+            this.timestamp = timestamp;
+            this.direction = direction;
+            this.frame = frame;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Estimates the retransmission timeout of a connection from measured round trip times, as in RFC 6298.
+ * <p>
+ * Keeps a smoothed round trip time (SRTT) and its variation (RTTVAR). The timeout is
+ * {@code SRTT + max(G, 4 * RTTVAR)}, doubled for every round of consecutive timeouts until a new measurement is
+ * taken.
+ * Callers must not measure frames that were retransmitted (Karn's algorithm), since their
+ * acknowledgement can't be matched to a particular transmission.
+ */
+class RttEstimator {
+    static final long INITIAL_RTO = 1000;  // milliseconds
+    static final long MIN_RTO = 100;  // milliseconds
+    static final long MAX_RTO = 60000;  // milliseconds
+    // Clock granularity: the ConnectionHost sends at most once per pass of its sender loop.
+    private static final long GRANULARITY = 20;  // milliseconds
+
+    private double srtt;
+    private double rttvar;
+    private boolean hasSample = false;
+    private long rto = INITIAL_RTO;
+    private boolean hasBackedOff = false;
+    private long lastBackoffAt;  // nanoseconds
+
+    /**
+     * Updates the estimate with a new round trip time measurement, and resets any backoff.
+     *
+     * @param rttNanos the measured round trip time, in nanoseconds
+     */
+    synchronized void sample(long rttNanos) {
+        double rtt = rttNanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+        if (!hasSample) {
+            srtt = rtt;
+            rttvar = rtt / 2;
+            hasSample = true;
+        } else {
+            rttvar = 0.75 * rttvar + 0.25 * Math.abs(srtt - rtt);
+            srtt = 0.875 * srtt + 0.125 * rtt;
+        }
+        rto = clamp((long) Math.ceil(srtt + Math.max(GRANULARITY, 4 * rttvar)));
+    }
+
+    /**
+     * Doubles the retransmission timeout after the timer of a frame has expired, once per round of expiries:
+     * frames last sent before the previous backoff were timed with the old timeout, and time out together when
+     * a burst of frames is lost, as they would with TCP's single timer.
+     *
+     * @param sentAt when the frame whose timer expired was last sent, in nanoseconds
+     * @param now    the current time, in nanoseconds
+     */
+    synchronized void backoff(long sentAt, long now) {
+        if (!hasBackedOff || sentAt - lastBackoffAt > 0) {
+            rto = clamp(rto * 2);
+            hasBackedOff = true;
+            lastBackoffAt = now;
+        }
+    }
+
+    /**
+     * @return the current retransmission timeout, in milliseconds
+     */
+    synchronized long rto() {
+        return rto;
+    }
+
+    /**
+     * @return the smoothed round trip time in milliseconds, or -1 if no measurement has been taken yet
+     */
+    synchronized double srtt() {
+        return hasSample ? srtt : -1;
+    }
+
+    private static long clamp(long rto) {
+        return Math.max(MIN_RTO, Math.min(MAX_RTO, rto));
+    }
+}
@@ -0,0 +1,207 @@
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashed timing wheel for scheduling many short-lived timeouts from a single thread.
+ * <p>
+ * Time is divided into ticks of {@code tickDuration}, and the wheel into {@code wheelSize} buckets, one per tick.
+ * A timeout is placed in the bucket of the tick it expires in, together with the number of full turns of the wheel
+ * left before it is due. Scheduling and canceling are O(1); every tick the worker thread expires the due timeouts
+ * of one bucket. Timeouts fire up to one tick late. While no timeout is pending, the worker parks instead of ticking.
+ * <p>
+ * Tasks run on the wheel's worker, a task run by the given {@code Executor}, and should return quickly.
+ * The wheel keeps time on the given {@code Clock}, with which the worker registers.
+ */
+class TimerWheel {
+    static final long DEFAULT_TICK_DURATION = 10;  // milliseconds
+    static final int DEFAULT_WHEEL_SIZE = 512;
+
+    private final long tickDuration;  // nanoseconds
+    private final Bucket[] wheel;
+    private final int mask;
+    private volatile Thread worker;
+    private volatile boolean isStopped = false;
+
+    private final Clock clock;
+    private final long startTime;
+    private long tick = 0;  // the next tick to be processed. Guarded by this.
+    private int size = 0;  // the number of pending timeouts. Guarded by this.
+
+    TimerWheel(Executor executor, Clock clock) {
+        this(executor, clock, DEFAULT_TICK_DURATION, DEFAULT_WHEEL_SIZE);
+    }
+
+    /**
+     * @param executor     runs the worker, which keeps running until the wheel is stopped
+     * @param clock        the clock to keep time on
+     * @param tickDuration the duration of one tick, in milliseconds
+     * @param wheelSize    the number of buckets. Rounded up to a power of 2.
+     */
+    TimerWheel(Executor executor, Clock clock, long tickDuration, int wheelSize) {
+        this.clock = clock;
+        this.startTime = clock.nanoTime();
+        this.tickDuration = TimeUnit.MILLISECONDS.toNanos(tickDuration);
+        int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+        mask = size - 1;
+        executor.execute(this::run);
+    }
+
+    /**
+     * Schedules the given task to run once after {@code delay} milliseconds.
+     *
+     * @param task  the task to run
+     * @param delay the delay, in milliseconds
+     * @return a handle that can be used to cancel the task
+     */
+    synchronized Timeout schedule(Runnable task, long delay) {
+        long now = clock.nanoTime() - startTime;
+        if (size == 0) {
+            // The worker has been parked: skip the ticks that passed meanwhile.
+            tick = Math.max(tick, now / tickDuration);
+        }
+        long deadline = now + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delay));
+        // Round up, and never schedule into a tick that has already been processed.
+        long expiryTick = Math.max(tick, (deadline + tickDuration - 1) / tickDuration);
+        Timeout timeout = new Timeout(task, (expiryTick - tick) / wheel.length);
+        wheel[(int) (expiryTick & mask)].add(timeout);
+        if (size++ == 0) {
+            clock.unpark(worker);
+        }
+        return timeout;
+    }
+
+    /**
+     * Stops the worker thread. Pending timeouts never run.
+     */
+    void stop() {
+        isStopped = true;
+        Thread worker = this.worker;
+        if (worker != null) {
+            worker.interrupt();
+        }
+    }
+
+    private void run() {
+        clock.register();
+        worker = Thread.currentThread();
+        try {
+            while (!isStopped && !Thread.currentThread().isInterrupted()) {
+                long nextTickTime;
+                synchronized (this) {
+                    nextTickTime = size == 0 ? -1 : (tick + 1) * tickDuration;
+                }
+                if (nextTickTime < 0) {
+                    clock.park();
+                    continue;
+                }
+                long sleep = nextTickTime - (clock.nanoTime() - startTime);
+                if (sleep > 0) {
+                    clock.sleep(sleep);
+                }
+                Timeout expired;
+                synchronized (this) {
+                    expired = wheel[(int) (tick & mask)].expire();
+                    tick++;
+                    for (Timeout timeout = expired; timeout != null; timeout = timeout.next) {
+                        size--;
+                    }
+                }
+                for (Timeout timeout = expired; timeout != null; timeout = timeout.next) {
+                    try {
+                        timeout.task.run();
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            // stopped
+        } finally {
+            clock.unregister();
+        }
+    }
+
+    /**
+     * Handle to a scheduled task.
+     */
+    class Timeout {
+        private final Runnable task;
+        private long remainingRounds;
+        private Bucket bucket;
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout(Runnable task, long remainingRounds) {
+            this.task = task;
+            this.remainingRounds = remainingRounds;
+        }
+
+        /**
+         * Prevents the task from running, if it hasn't expired yet.
+         */
+        void cancel() {
+            synchronized (TimerWheel.this) {
+                if (bucket != null) {
+                    bucket.remove(this);
+                    size--;
+                }
+            }
+        }
+    }
+
+    /**
+     * Doubly-linked list of the timeouts that expire in one slot of the wheel.
+     */
+    private static class Bucket {
+        private Timeout head;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            timeout.next = head;
+            if (head != null) {
+                head.prev = timeout;
+            }
+            head = timeout;
+        }
+
+        void remove(Timeout timeout) {
+            if (timeout.prev != null) {
+                timeout.prev.next = timeout.next;
+            } else {
+                head = timeout.next;
+            }
+            if (timeout.next != null) {
+                timeout.next.prev = timeout.prev;
+            }
+            timeout.bucket = null;
+            timeout.prev = null;
+            timeout.next = null;
+        }
+
+        /**
+         * Removes the timeouts that are due this round, and counts down the rest.
+         *
+         * @return the due timeouts, linked through {@code next}
+         */
+        Timeout expire() {
+            Timeout expired = null;
+            Timeout timeout = head;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.remainingRounds <= 0) {
+                    remove(timeout);
+                    timeout.next = expired;
+                    expired = timeout;
+                } else {
+                    timeout.remainingRounds--;
+                }
+                timeout = next;
+            }
+            return expired;
+        }
+    }
+}